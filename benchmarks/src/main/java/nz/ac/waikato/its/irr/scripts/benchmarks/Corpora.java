@@ -0,0 +1,108 @@
+package nz.ac.waikato.its.irr.scripts.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Synthetic metadata values resembling what we find in dc.subject and dc.contributor.author.
+ *
+ * All corpora are generated from a fixed seed so that results are comparable between runs.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+final class Corpora {
+	private static final String[] WORDS = {
+			"water", "quality", "management", "New Zealand", "Waikato", "river", "education", "policy", "Maori",
+			"indigenous", "health", "computer science", "machine learning", "data mining", "climate change",
+			"agriculture", "dairy", "nitrogen", "leaching", "soil", "tourism", "economics", "law", "te reo",
+			"kaupapa Maori", "identity", "gender", "sport", "psychology", "wellbeing", "engineering", "biofilms",
+			"lake", "sediment", "phosphorus", "language", "literacy", "mathematics", "teaching", "assessment"
+	};
+	private static final String[] SURNAMES = {
+			"Smith", "Williams", "Brown", "Wilson", "Taylor", "Ngata", "Te Awa", "Walker", "O'Neill", "Müller",
+			"García", "Nguyen", "Patel", "Chen", "Kingi", "MacDonald", "van der Berg", "Henare", "Zhang", "Cooper"
+	};
+	private static final String[] GIVEN_NAMES = {
+			"Anna", "Tama", "Wiremu", "Mere", "James", "Li", "Priya", "Sarah", "Hēmi", "Aroha", "David", "José",
+			"Emma", "Rangi", "Michael", "Sophie", "Ian", "Kiri", "Paul", "Zoë"
+	};
+	// most values in a real run don't need splitting; these are the ones that do
+	private static final double SQUISHED_RATIO = 0.2;
+
+	private Corpora() {
+	}
+
+	/**
+	 * Keyword values, some of them squished together with the given delimiter and containing stray line breaks, tabs
+	 * and double spaces.
+	 */
+	static String[] keywords(int size, String delimiter, long seed) {
+		Random random = new Random(seed);
+		String[] values = new String[size];
+		for (int i = 0; i < size; i++) {
+			if (random.nextDouble() < SQUISHED_RATIO) {
+				int parts = 2 + random.nextInt(6);
+				StringBuilder value = new StringBuilder();
+				for (int j = 0; j < parts; j++) {
+					if (j > 0) {
+						value.append(delimiter);
+						value.append(randomWhitespace(random));
+					}
+					value.append(keyword(random));
+				}
+				values[i] = value.toString();
+			} else {
+				values[i] = keyword(random);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Author names in "Lastname, Firstname" format, with varying capitalisation.
+	 */
+	static String[] authors(int size, long seed) {
+		Random random = new Random(seed);
+		String[] values = new String[size];
+		for (int i = 0; i < size; i++) {
+			String name = pick(random, SURNAMES) + ", " + pick(random, GIVEN_NAMES);
+			if (random.nextInt(4) == 0) {
+				name += " " + (char) ('A' + random.nextInt(26)) + ".";
+			}
+			int casing = random.nextInt(10);
+			if (casing == 0) {
+				name = name.toUpperCase();
+			} else if (casing == 1) {
+				name = name.toLowerCase();
+			}
+			values[i] = name;
+		}
+		return values;
+	}
+
+	private static String keyword(Random random) {
+		String keyword = pick(random, WORDS);
+		if (random.nextBoolean()) {
+			keyword += " " + pick(random, WORDS);
+		}
+		return keyword;
+	}
+
+	private static String randomWhitespace(Random random) {
+		switch (random.nextInt(6)) {
+			case 0:
+				return "\r\n";
+			case 1:
+				return "\t";
+			case 2:
+				return "  ";
+			case 3:
+				return "";
+			default:
+				return " ";
+		}
+	}
+
+	private static String pick(Random random, String[] choices) {
+		return choices[random.nextInt(choices.length)];
+	}
+}
@@ -0,0 +1,67 @@
+package nz.ac.waikato.its.irr.scripts.benchmarks;
+
+import nz.ac.waikato.its.irr.scripts.MetadataValueTransforms;
+import nz.ac.waikato.its.irr.scripts.ValueNormaliser;
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the per-value work done by FixSquishedMetadata: counting delimiters, splitting and normalising the
+ * individual values. The regex benchmark is the regular expression based whitespace clean-up the script used before
+ * the normaliser, for comparison with the default normalisation steps.
+ *
+ * Scores are per metadata value.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FixSquishedMetadataBenchmark {
+	static final int CORPUS_SIZE = 100000;
+
+	@Param({";", ",", " - "})
+	public String delimiter;
+
+	@Param({ValueNormaliser.DEFAULT_STEPS, "whitespace,trim,nfc,punctuation"})
+	public String normalise;
+
+	private String[] keywords;
+	private ValueNormaliser normaliser;
+
+	@Setup
+	public void setUp() {
+		keywords = Corpora.keywords(CORPUS_SIZE, delimiter, 42L);
+		normaliser = ValueNormaliser.compile(normalise);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CORPUS_SIZE)
+	public void splitSquished(Blackhole blackhole) {
+		for (String keyword : keywords) {
+			blackhole.consume(MetadataValueTransforms.splitSquished(keyword, delimiter, 1, normaliser));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CORPUS_SIZE)
+	public void splitSquishedRegex(Blackhole blackhole) {
+		for (String keyword : keywords) {
+			if (StringUtils.isBlank(keyword) || StringUtils.countMatches(keyword, delimiter) < 1) {
+				blackhole.consume(null);
+				continue;
+			}
+			String[] individualValues = StringUtils.splitByWholeSeparator(keyword, delimiter);
+			for (int i = 0; i < individualValues.length; i++) {
+				individualValues[i] = individualValues[i].replaceAll("(\\r|\\n|\\t)", " ").replaceAll("  ", " ").trim();
+			}
+			blackhole.consume(individualValues);
+		}
+	}
+}
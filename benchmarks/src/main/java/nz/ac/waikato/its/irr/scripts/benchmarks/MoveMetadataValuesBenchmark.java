@@ -0,0 +1,85 @@
+package nz.ac.waikato.its.irr.scripts.benchmarks;
+
+import nz.ac.waikato.its.irr.scripts.VocabularyMatcher;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the per-value work done by MoveMetadataValues when given a restrict-values file: looking up each value in
+ * the {@link VocabularyMatcher}. The hashMap benchmark is the lower-casing HashMap lookup the script used before the
+ * matcher, for comparison with exact matching.
+ *
+ * Scores are per metadata value.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoveMetadataValuesBenchmark {
+	static final int CORPUS_SIZE = 100000;
+
+	@Param({"1000", "200000"})
+	public int restrictValuesSize;
+
+	@Param({"false", "true"})
+	public boolean matchCase;
+
+	@Param({"EXACT", "PREFIX", "PHRASE"})
+	public VocabularyMatcher.Mode mode;
+
+	private String[] values;
+	private Map<String, String> valuesFilter;
+	private VocabularyMatcher matcher;
+	private final int[] match = new int[3];
+
+	@Setup
+	public void setUp() throws IOException {
+		values = Corpora.authors(CORPUS_SIZE, 42L);
+		String[] restrictValues = Corpora.authors(restrictValuesSize, 4242L);
+
+		valuesFilter = new HashMap<>();
+		for (String value : restrictValues) {
+			valuesFilter.put(matchCase ? value : value.toLowerCase(), value);
+		}
+
+		File valuesFile = File.createTempFile("restrict-values", ".txt");
+		valuesFile.deleteOnExit();
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(valuesFile), StandardCharsets.UTF_8)) {
+			for (String value : restrictValues) {
+				writer.write(value);
+				writer.write('\n');
+			}
+		}
+		matcher = VocabularyMatcher.load(valuesFile, mode, matchCase, false);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CORPUS_SIZE)
+	public void hashMap(Blackhole blackhole) {
+		for (String value : values) {
+			blackhole.consume(valuesFilter.containsKey(matchCase ? value : value.toLowerCase()));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CORPUS_SIZE)
+	public void vocabularyMatcher(Blackhole blackhole) {
+		for (String value : values) {
+			blackhole.consume(matcher.find(value, match));
+		}
+	}
+}
@@ -3,8 +3,8 @@ package nz.ac.waikato.its.irr.scripts;
 import org.apache.commons.cli.*;
 import org.apache.commons.lang.StringUtils;
 import org.apache.tika.config.TikaConfig;
+import org.apache.tika.detect.Detector;
 import org.apache.tika.exception.TikaException;
-import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.content.*;
@@ -14,23 +14,29 @@ import org.dspace.handle.HandleManager;
 
 import java.io.*;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
  */
 public class AddBitstreamFromCLI {
 	private static final Options OPTIONS = new Options();
+	private static final int DETECT_BYTES = 1 << 16;
+	private static Detector detector;
+	private static boolean detectorFailed = false;
 
 	static {
-		Option option = new Option("i", "identifier", true, "Handle or ID of item to add bitstream to");
-		option.setRequired(true);
-		OPTIONS.addOption(option);
-		option = new Option("f", "file", true, "File to add");
-		option.setRequired(true);
-		OPTIONS.addOption(option);
+		OPTIONS.addOption("i", "identifier", true, "Handle or ID of item to add bitstream to. Required unless -m is given.");
+		OPTIONS.addOption("f", "file", true, "File to add. Required unless -m is given.");
 		OPTIONS.addOption("d", "description", true, "The file description (optional)");
 		OPTIONS.addOption("b", "bundle", true, "Name of the bundle that this file should be added to (optional). If not given, " + Constants.DEFAULT_BUNDLE_NAME + " is used.");
+		OPTIONS.addOption("m", "manifest", true, "CSV file listing many files to add, one per line: item handle or ID, file (relative to the directory of the manifest), bundle (optional, default " + Constants.CONTENT_BUNDLE_NAME + ") and description (optional). Replaces -i, -f, -b and -d.");
+		OPTIONS.addOption(new Option(null, "threads", true, "Number of files to upload at the same time with -m. Optional. Default is " + ManifestIngest.DEFAULT_THREADS + "."));
+		BatchCommitter.addOption(OPTIONS);
+		BitstreamDedup.addOptions(OPTIONS);
 		OPTIONS.addOption("h", "help", false, "Print help for this command and exit without taking any action.");
+		ScriptMetrics.addOptions(OPTIONS);
 	}
 
 	public static void main(String[] args) {
@@ -46,6 +52,48 @@ public class AddBitstreamFromCLI {
 			ScriptUtils.printHelpAndExit(AddBitstreamFromCLI.class.getSimpleName(), 0, OPTIONS);
 		}
 
+		int threads = ManifestIngest.DEFAULT_THREADS;
+		int batchSize = BatchCommitter.DEFAULT_BATCH_SIZE;
+		BitstreamDedup dedup = null;
+		try {
+			ScriptMetrics.start(AddBitstreamFromCLI.class.getSimpleName(), line);
+			if (line.hasOption("threads")) {
+				threads = ItemProcessingEngine.parsePositiveInt(line, "threads");
+			}
+			batchSize = BatchCommitter.parseBatchSize(line);
+			dedup = BitstreamDedup.fromCommandLine(line);
+		} catch (ParseException e) {
+			System.err.println("Could not parse command line options: " + e.getMessage());
+			ScriptUtils.printHelpAndExit(AddBitstreamFromCLI.class.getSimpleName(), 1, OPTIONS);
+		}
+
+		if (line.hasOption("m")) {
+			if (line.hasOption("i") || line.hasOption("f") || line.hasOption("b") || line.hasOption("d")) {
+				System.err.println("-m cannot be combined with -i, -f, -b or -d.");
+				ScriptUtils.printHelpAndExit(AddBitstreamFromCLI.class.getSimpleName(), 1, OPTIONS);
+			}
+			File manifest = new File(line.getOptionValue("m"));
+			if (!manifest.isFile() || !manifest.canRead()) {
+				System.err.println("Manifest " + manifest.getPath() + " doesn't exist or isn't readable. Exiting.");
+				ScriptUtils.printHelpAndExit(AddBitstreamFromCLI.class.getSimpleName(), 1, OPTIONS);
+			}
+			try {
+				new ManifestIngest(threads, batchSize, dedup).run(manifest);
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				ScriptUtils.printHelpAndExit(AddBitstreamFromCLI.class.getSimpleName(), 1, OPTIONS);
+			} catch (SQLException | IOException e) {
+				System.err.println("Exception encountered while processing manifest " + manifest.getPath());
+				e.printStackTrace(System.err);
+			}
+			return;
+		}
+
+		if (!line.hasOption("i") || !line.hasOption("f")) {
+			System.err.println("-i and -f are required unless -m is given.");
+			ScriptUtils.printHelpAndExit(AddBitstreamFromCLI.class.getSimpleName(), 1, OPTIONS);
+		}
+
 		File file = new File(line.getOptionValue("f"));
 		if (!file.exists() || !file.canRead()) {
 			System.err.println("File " + line.getOptionValue("f") + " doesn't exist or isn't readable. Exiting.");
@@ -84,38 +132,18 @@ public class AddBitstreamFromCLI {
 				bundleName = line.getOptionValue("b");
 			}
 
-			Bundle bundle = null;
-			Bundle[] bundles = item.getBundles(bundleName);
-			if (bundles != null && bundles.length > 0 && bundles[0] != null) {
-				bundle = bundles[0];
-			}
-			if (bundle == null) {
-				System.out.println("No bundle with name " + bundleName + " found, creating one.");
-				bundle = item.createBundle(bundleName);
-			}
-			Bitstream bitstream = bundle.createBitstream(new BufferedInputStream(new FileInputStream(file)));
-			System.out.println("Uploaded file " + file.getName() + " to bundle " + bundleName);
-			bitstream.setName(file.getName());
-			if (line.hasOption("d")) {
-				bitstream.setDescription(line.getOptionValue("d"));
-			}
-			try {
-				TikaConfig tika = new TikaConfig();
-				Metadata metadata = new Metadata();
-				metadata.set(Metadata.RESOURCE_NAME_KEY, file.toString());
-				String mimetype = tika.getDetector().detect(TikaInputStream.get(file), metadata).toString();
-				if (StringUtils.isNotBlank(mimetype)) {
-					System.out.println("Trying to set format to " + mimetype);
-					bitstream.setFormat(BitstreamFormat.findByMIMEType(context, mimetype));
-				}
-			} catch (TikaException e) {
-				System.err.println("Problem detecting format of file, not setting format.");
-				e.printStackTrace(System.err);
+			Bitstream duplicate = dedup != null ? dedup.findDuplicate(context, item, bundleName, file) : null;
+			if (duplicate != null) {
+				System.out.println("File " + file.getName() + " " + dedup.handleDuplicate(item, bundleName, duplicate, file.getName(), line.getOptionValue("d")));
+			} else {
+				Bitstream bitstream = addBitstream(context, item, file, bundleName, line.getOptionValue("d"), new HashMap<String, BitstreamFormat>());
+				System.out.println("Uploaded file " + file.getName() + " to bundle " + bundleName + ", format " + bitstream.getFormat().getMIMEType()
+						+ ", checksum " + bitstream.getChecksumAlgorithm() + " " + bitstream.getChecksum());
 			}
-			bitstream.update();
-			item.update();
 
+			ScriptMetrics.get().timedCommit(context);
 			context.complete();
+			ScriptMetrics.get().itemProcessed(true);
 
 			System.out.println("File successfully added to item. You may wish to delete the original from " + file.getCanonicalPath());
 		} catch (SQLException | AuthorizeException | IOException e) {
@@ -128,4 +156,131 @@ public class AddBitstreamFromCLI {
 		}
 
 	}
+
+	/**
+	 * Add a file to an item as a new bitstream, creating the bundle if necessary, and set its format from the MIME type
+	 * that Tika detects. The file is read only once: DSpace computes the bitstream's checksum while storing it, and the
+	 * first {@value #DETECT_BYTES} bytes are kept on the way for Tika. Doesn't commit.
+	 *
+	 * @param formats bitstream formats already looked up with the given context, by MIME type; new ones are added.
+	 */
+	static Bitstream addBitstream(Context context, Item item, File file, String bundleName, String description, Map<String, BitstreamFormat> formats) throws SQLException, AuthorizeException, IOException {
+		Bundle bundle = null;
+		Bundle[] bundles = item.getBundles(bundleName);
+		if (bundles != null && bundles.length > 0 && bundles[0] != null) {
+			bundle = bundles[0];
+		}
+		if (bundle == null) {
+			System.out.println("Item id=" + item.getID() + ": no bundle with name " + bundleName + " found, creating one.");
+			bundle = item.createBundle(bundleName);
+		}
+		long uploadStart = System.nanoTime();
+		Bitstream bitstream;
+		byte[] leadingBytes;
+		try (LeadingBytesInputStream in = new LeadingBytesInputStream(new BufferedInputStream(new FileInputStream(file)), DETECT_BYTES)) {
+			bitstream = bundle.createBitstream(in);
+			leadingBytes = in.getLeadingBytes();
+		}
+		ScriptMetrics.get().recordPhase("assetstore.upload", System.nanoTime() - uploadStart);
+		bitstream.setName(file.getName());
+		if (description != null) {
+			bitstream.setDescription(description);
+		}
+		long detectStart = System.nanoTime();
+		String mimetype = detectMimeType(file, leadingBytes);
+		ScriptMetrics.get().recordPhase("task.detect", System.nanoTime() - detectStart);
+		if (StringUtils.isNotBlank(mimetype)) {
+			if (!formats.containsKey(mimetype)) {
+				formats.put(mimetype, BitstreamFormat.findByMIMEType(context, mimetype));
+			}
+			bitstream.setFormat(formats.get(mimetype));
+		}
+		bitstream.update();
+		item.update();
+		return bitstream;
+	}
+
+	/**
+	 * @return the MIME type of the file according to Tika, going by its name and leading bytes, or null if it can't be
+	 * detected.
+	 */
+	private static String detectMimeType(File file, byte[] leadingBytes) throws IOException {
+		Detector tikaDetector = getDetector();
+		if (tikaDetector == null) {
+			return null;
+		}
+		Metadata metadata = new Metadata();
+		metadata.set(Metadata.RESOURCE_NAME_KEY, file.toString());
+		return tikaDetector.detect(new ByteArrayInputStream(leadingBytes), metadata).toString();
+	}
+
+	/**
+	 * @return the Tika detector shared by all uploads in this JVM, or null if Tika couldn't be configured.
+	 */
+	private static synchronized Detector getDetector() throws IOException {
+		if (detector == null && !detectorFailed) {
+			try {
+				// loading the configuration is expensive, so only do it once; detectors can be used from several threads
+				detector = new TikaConfig().getDetector();
+			} catch (TikaException e) {
+				detectorFailed = true;
+				System.err.println("Problem setting up format detection, not setting formats.");
+				e.printStackTrace(System.err);
+			}
+		}
+		return detector;
+	}
+
+	/**
+	 * Passes a stream through unchanged while keeping a copy of its first bytes.
+	 */
+	private static class LeadingBytesInputStream extends FilterInputStream {
+		private final ByteArrayOutputStream leadingBytes;
+		private final int limit;
+
+		LeadingBytesInputStream(InputStream in, int limit) {
+			super(in);
+			this.limit = limit;
+			this.leadingBytes = new ByteArrayOutputStream(limit);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1 && leadingBytes.size() < limit) {
+				leadingBytes.write(b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0 && leadingBytes.size() < limit) {
+				leadingBytes.write(b, off, Math.min(read, limit - leadingBytes.size()));
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// read rather than skip, so that no leading bytes go missing
+			byte[] buffer = new byte[(int) Math.min(n, 8192)];
+			long skipped = 0;
+			int read;
+			while (skipped < n && (read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length))) != -1) {
+				skipped += read;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		byte[] getLeadingBytes() {
+			return leadingBytes.toByteArray();
+		}
+	}
 }
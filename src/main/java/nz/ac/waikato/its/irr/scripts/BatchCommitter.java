@@ -0,0 +1,121 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.dspace.core.Context;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+
+/**
+ * Groups the changes for several units of work (usually items) into one transaction, committing every batchSize units.
+ *
+ * Each unit runs inside its own JDBC savepoint: call {@link #begin()} before making changes, then either
+ * {@link #succeeded()} or {@link #failed()}. A failed unit is rolled back to its savepoint on its own, so the other
+ * units in the same batch are still committed. Callers should decache any objects touched by a failed unit, since the
+ * context's object cache is not rolled back along with the database.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class BatchCommitter {
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	private final Context context;
+	private final int batchSize;
+	private Savepoint savepoint;
+	private int pending;
+	private Throttle throttle;
+
+	public BatchCommitter(Context context, int batchSize) {
+		this.context = context;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Report the latency of each commit to the given throttle, so it can adapt its rate.
+	 */
+	public void setThrottle(Throttle throttle) {
+		this.throttle = throttle;
+	}
+
+	public static void addOption(Options options) {
+		options.addOption(new Option(null, "batch-size", true, "Number of items to process per database transaction. Optional. Default is " + DEFAULT_BATCH_SIZE + "."));
+	}
+
+	public static int parseBatchSize(CommandLine line) throws ParseException {
+		if (line.hasOption("batch-size")) {
+			return ItemProcessingEngine.parsePositiveInt(line, "batch-size");
+		}
+		return DEFAULT_BATCH_SIZE;
+	}
+
+	/**
+	 * Start a new unit of work.
+	 */
+	public void begin() throws SQLException {
+		savepoint = context.getDBConnection().setSavepoint();
+	}
+
+	/**
+	 * Finish the current unit of work, keeping its changes.
+	 *
+	 * @return true if this completed a batch and the transaction was committed.
+	 */
+	public boolean succeeded() throws SQLException {
+		if (savepoint != null) {
+			try {
+				context.getDBConnection().releaseSavepoint(savepoint);
+			} catch (SQLFeatureNotSupportedException e) {
+				// savepoint will be released on commit instead
+			}
+			savepoint = null;
+		}
+		return unitDone();
+	}
+
+	/**
+	 * Finish the current unit of work, rolling back all of its changes.
+	 *
+	 * @return true if this completed a batch and the transaction was committed.
+	 */
+	public boolean failed() throws SQLException {
+		if (savepoint != null) {
+			context.getDBConnection().rollback(savepoint);
+			savepoint = null;
+		}
+		return unitDone();
+	}
+
+	private boolean unitDone() throws SQLException {
+		pending++;
+		if (pending >= batchSize) {
+			commit();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Commit all finished units of work, even if the batch isn't full yet.
+	 */
+	public void commit() throws SQLException {
+		long start = System.nanoTime();
+		context.commit();
+		long nanos = System.nanoTime() - start;
+		ScriptMetrics.get().recordCommit(nanos);
+		if (throttle != null) {
+			throttle.commitFinished(nanos);
+		}
+		pending = 0;
+	}
+
+	/**
+	 * @return the number of finished units of work that have not been committed yet.
+	 */
+	public int getPending() {
+		return pending;
+	}
+}
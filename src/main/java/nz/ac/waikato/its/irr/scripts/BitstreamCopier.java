@@ -0,0 +1,252 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Bitstream;
+import org.dspace.core.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies bitstreams to files using a bounded pool of worker threads, for {@link ExportFulltextForAuthor}.
+ *
+ * The DSpace context is only ever used by the calling thread: it looks up where each bitstream's content is and then
+ * hands the copy to a worker. Bitstreams in a local assetstore, as found by {@link LocalAssetstore}, are copied file to
+ * file with {@link FileChannel#transferTo}, which lets the operating system move the data without it passing through
+ * the JVM; all others are streamed from Bitstream.retrieve. If all workers are busy and the queue is full, the calling thread
+ * does the next copy itself, so at most a few bitstreams per worker are ever open at once.
+ *
+ * A bitstream that belongs in several directories is copied once and hard-linked into the others, or copied again where
+ * the file system doesn't support hard links. If some of the links fail, the others are still made.
+ *
+ * Progress is reported per item once all of its bitstreams are done, with the reasons for any failed copies and links.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class BitstreamCopier {
+	public static final int DEFAULT_THREADS = 4;
+	private static final int QUEUED_PER_THREAD = 4;
+
+	private final int threads;
+	private final ThreadPoolExecutor executor;
+	private final long startNanos = System.nanoTime();
+	private final AtomicInteger items = new AtomicInteger();
+	private final AtomicInteger copied = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger linked = new AtomicInteger();
+	private final AtomicInteger linkFailed = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+
+	public BitstreamCopier(int threads) {
+		this.threads = threads;
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * QUEUED_PER_THREAD), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Start copying the given bitstreams of an item, looking up where their content is stored all at once. Call
+	 * {@link #copy} exactly once for each of them with the returned progress; the item is reported once the last of
+	 * these copies is done.
+	 */
+	public ItemProgress startItem(Context context, int itemId, List<Bitstream> bitstreams) {
+		Map<Integer, String> internalIds;
+		try {
+			internalIds = LocalAssetstore.findInternalIds(context, bitstreams);
+		} catch (SQLException e) {
+			System.err.println("item id=" + itemId + ": could not look up assetstore files, reading them via DSpace instead: " + e.getMessage());
+			internalIds = Collections.emptyMap();
+		}
+		ItemProgress progress = new ItemProgress(itemId, bitstreams.size(), internalIds);
+		if (bitstreams.isEmpty()) {
+			progress.report();
+		}
+		return progress;
+	}
+
+	/**
+	 * Copy a bitstream to the given target file, which must not exist yet. Returns as soon as the copy has been handed
+	 * to a worker; failures are reported with the item.
+	 */
+	public void copy(Context context, ItemProgress item, Bitstream bitstream, Path target) {
+		copy(context, item, bitstream, target, Collections.<Path>emptyList());
+	}
+
+	/**
+	 * Copy a bitstream to the given target file and then link it to each of the given other files. None of these files
+	 * must exist yet. Returns as soon as the copy has been handed to a worker; failures are reported with the item, each
+	 * failed link separately.
+	 */
+	public void copy(Context context, final ItemProgress item, final Bitstream bitstream, final Path target, final List<Path> links) {
+		final File source;
+		final InputStream in;
+		try {
+			source = LocalAssetstore.findFile(bitstream, item.internalIds.get(bitstream.getID()));
+			in = source == null ? bitstream.retrieve() : null;
+		} catch (SQLException | AuthorizeException | IOException e) {
+			item.done(bitstream, 0, e);
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				long size;
+				try {
+					if (source != null) {
+						size = transfer(source.toPath(), target);
+						ScriptMetrics.get().recordPhase("assetstore.transfer", System.nanoTime() - start);
+					} else {
+						try (InputStream stream = in) {
+							size = Files.copy(stream, target);
+						}
+						ScriptMetrics.get().recordPhase("assetstore.copy", System.nanoTime() - start);
+					}
+				} catch (IOException | RuntimeException e) {
+					if (!(e instanceof FileAlreadyExistsException)) {
+						try {
+							Files.deleteIfExists(target);
+						} catch (IOException deleteException) {
+							// report the original problem only
+						}
+					}
+					item.done(bitstream, 0, e);
+					return;
+				}
+				if (!links.isEmpty()) {
+					start = System.nanoTime();
+					for (Path link : links) {
+						try {
+							link(target, link);
+						} catch (IOException | RuntimeException e) {
+							item.linkFailed(bitstream, link, e);
+						}
+					}
+					ScriptMetrics.get().recordPhase("assetstore.link", System.nanoTime() - start);
+				}
+				item.done(bitstream, size, null);
+			}
+		});
+	}
+
+	private void link(Path existing, Path link) throws IOException {
+		try {
+			Files.createLink(link, existing);
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			if (e instanceof FileAlreadyExistsException) {
+				throw (FileAlreadyExistsException) e;
+			}
+			// no hard links here, eg across file systems
+			Files.copy(existing, link);
+		}
+		linked.incrementAndGet();
+	}
+
+	private static long transfer(Path source, Path target) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+		     FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				position += in.transferTo(position, size - position, out);
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Wait for all copies to finish and print a summary.
+	 */
+	public void close() throws InterruptedException {
+		executor.shutdown();
+		while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+			System.out.println("Waiting for " + (executor.getActiveCount() + executor.getQueue().size()) + " bitstream copies to finish");
+		}
+		System.out.println(String.format("Copied %d bitstream(s) (%.1f MB) of %d item(s), %d failed, %d linked, %d link(s) failed, in %.1fs using %d thread(s)",
+				copied.get(), bytes.get() / (1024.0 * 1024.0), items.get(), failed.get(), linked.get(), linkFailed.get(),
+				(System.nanoTime() - startNanos) / 1e9, threads));
+	}
+
+	/**
+	 * Tracks the copies of one item's bitstreams, which may finish on different threads.
+	 */
+	public class ItemProgress {
+		private final int itemId;
+		private final int bitstreamCount;
+		private final AtomicInteger done = new AtomicInteger();
+		private final AtomicInteger itemFailed = new AtomicInteger();
+		private final AtomicInteger itemLinkFailed = new AtomicInteger();
+		private final AtomicLong itemBytes = new AtomicLong();
+		private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+		private final Map<Integer, String> internalIds;
+
+		private ItemProgress(int itemId, int bitstreamCount, Map<Integer, String> internalIds) {
+			this.itemId = itemId;
+			this.bitstreamCount = bitstreamCount;
+			this.internalIds = internalIds;
+		}
+
+		private void done(Bitstream bitstream, long size, Exception failure) {
+			if (failure != null) {
+				itemFailed.incrementAndGet();
+				failed.incrementAndGet();
+				failures.add("could not copy bitstream id=" + bitstream.getID() + ", name=" + bitstream.getName() + ": " + failure.getMessage());
+			} else {
+				copied.incrementAndGet();
+				bytes.addAndGet(size);
+				itemBytes.addAndGet(size);
+			}
+			if (done.incrementAndGet() == bitstreamCount) {
+				report();
+			}
+		}
+
+		/**
+		 * Record that a copy was made but could not be linked to one of its other files. Call before {@link #done} for
+		 * the same copy.
+		 */
+		private void linkFailed(Bitstream bitstream, Path link, Exception failure) {
+			itemLinkFailed.incrementAndGet();
+			linkFailed.incrementAndGet();
+			failures.add("could not link bitstream id=" + bitstream.getID() + ", name=" + bitstream.getName() + " to " + link + ": " + failure.getMessage());
+		}
+
+		private void report() {
+			items.incrementAndGet();
+			boolean incomplete = itemFailed.get() > 0 || itemLinkFailed.get() > 0;
+			if (incomplete) {
+				ScriptMetrics.get().itemFailed();
+			} else {
+				ScriptMetrics.get().itemProcessed(false);
+			}
+			StringBuilder message = new StringBuilder("item id=").append(itemId).append(": copied ")
+					.append(bitstreamCount - itemFailed.get()).append(" of ").append(bitstreamCount).append(" bitstream(s), ")
+					.append(itemBytes.get()).append(" bytes");
+			if (itemLinkFailed.get() > 0) {
+				message.append(", ").append(itemLinkFailed.get()).append(" link(s) failed");
+			}
+			for (String failure : failures) {
+				message.append("\n\t").append(failure);
+			}
+			if (incomplete) {
+				System.err.println(message);
+			} else {
+				System.out.println(message);
+			}
+		}
+	}
+}
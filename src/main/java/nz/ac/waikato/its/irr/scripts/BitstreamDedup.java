@@ -0,0 +1,187 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Bitstream;
+import org.dspace.content.Bundle;
+import org.dspace.content.Item;
+import org.dspace.core.Context;
+import org.dspace.core.Utils;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+
+/**
+ * Finds bitstreams with the same content as a file that is about to be added, for {@link AddBitstreamFromCLI}, so that
+ * the file doesn't get stored a second time, eg when an ingest batch is run again after a partial failure.
+ *
+ * Content is compared by MD5 checksum and size, which DSpace records for every bitstream when storing it, so only the
+ * new file needs to be read. Depending on the scope, the checksum is compared with the bitstreams in the target bundle,
+ * in any bundle of the item, or with all bitstreams in the repository via a query on the bitstream table. A duplicate
+ * is either skipped, or linked: the existing bitstream is added to the target bundle, sharing its stored content.
+ *
+ * Only bitstreams of the target item itself are ever reused. With repository scope, a match in another item is reported,
+ * but the file is still added as a new bitstream: skipping it would leave the item without the file, and linking it
+ * would share one bitstream between two items, which then gets the access policies of both, eg making an embargoed
+ * file readable through the other item. A reused bitstream keeps its own name and description.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class BitstreamDedup {
+	public static final String SCOPE_BUNDLE = "bundle";
+	public static final String SCOPE_ITEM = "item";
+	public static final String SCOPE_REPOSITORY = "repository";
+	public static final String ACTION_SKIP = "skip";
+	public static final String ACTION_LINK = "link";
+	private static final String ALGORITHM = "MD5";
+
+	private final String scope;
+	private final boolean link;
+
+	BitstreamDedup(String scope, boolean link) {
+		this.scope = scope;
+		this.link = link;
+	}
+
+	public static void addOptions(Options options) {
+		options.addOption(new Option(null, "dedup", true, "Don't add a file again if a bitstream with the same content (" + ALGORITHM + " checksum and size) already exists in the target bundle (" + SCOPE_BUNDLE + "), in any bundle of the item (" + SCOPE_ITEM + ") or anywhere in the repository (" + SCOPE_REPOSITORY + "; matches in other items are only reported, the file is still added). Optional. By default, all files are added."));
+		options.addOption(new Option(null, "dedup-action", true, "What to do with a file whose content already exists with --dedup: " + ACTION_SKIP + " it, or " + ACTION_LINK + " the existing bitstream into the target bundle if it isn't in there already. Optional. Default is " + ACTION_SKIP + "."));
+	}
+
+	/**
+	 * @return the deduplication requested on the command line, or null if there is none.
+	 */
+	public static BitstreamDedup fromCommandLine(CommandLine line) throws ParseException {
+		if (!line.hasOption("dedup")) {
+			if (line.hasOption("dedup-action")) {
+				throw new ParseException("--dedup-action requires --dedup");
+			}
+			return null;
+		}
+		String scope = line.getOptionValue("dedup").toLowerCase();
+		if (!SCOPE_BUNDLE.equals(scope) && !SCOPE_ITEM.equals(scope) && !SCOPE_REPOSITORY.equals(scope)) {
+			throw new ParseException("Value for --dedup must be " + SCOPE_BUNDLE + ", " + SCOPE_ITEM + " or " + SCOPE_REPOSITORY + ", got " + scope);
+		}
+		String action = line.getOptionValue("dedup-action", ACTION_SKIP).toLowerCase();
+		if (!ACTION_SKIP.equals(action) && !ACTION_LINK.equals(action)) {
+			throw new ParseException("Value for --dedup-action must be " + ACTION_SKIP + " or " + ACTION_LINK + ", got " + action);
+		}
+		return new BitstreamDedup(scope, ACTION_LINK.equals(action));
+	}
+
+	/**
+	 * @return a bitstream of the item with the same content as the file within this deduplication's scope, or null if
+	 * there is none.
+	 */
+	public Bitstream findDuplicate(Context context, Item item, String bundleName, File file) throws SQLException, IOException {
+		long start = System.nanoTime();
+		String checksum = checksum(file);
+		long size = file.length();
+		Bitstream duplicate = null;
+		if (SCOPE_REPOSITORY.equals(scope)) {
+			// only bitstreams that are still in an item's bundle count; a match in the item itself comes first
+			TableRow row = DatabaseManager.querySingle(context, "SELECT b.bitstream_id, ib.item_id FROM bitstream b, bundle2bitstream bb, item2bundle ib"
+					+ " WHERE bb.bitstream_id = b.bitstream_id AND ib.bundle_id = bb.bundle_id"
+					+ " AND b.checksum = ? AND b.checksum_algorithm = ? AND b.size_bytes = ? AND (b.deleted IS NULL OR b.deleted = '0')"
+					+ " ORDER BY CASE WHEN ib.item_id = ? THEN 0 ELSE 1 END, b.bitstream_id",
+					checksum, ALGORITHM, size, item.getID());
+			if (row != null && row.getIntColumn("item_id") == item.getID()) {
+				duplicate = Bitstream.find(context, row.getIntColumn("bitstream_id"));
+			} else if (row != null) {
+				System.out.println("item id=" + item.getID() + ": file " + file.getName() + " has the same content as bitstream id="
+						+ row.getIntColumn("bitstream_id") + " of item id=" + row.getIntColumn("item_id")
+						+ ", adding it anyway since bitstreams aren't shared between items");
+			}
+		} else {
+			Bundle[] bundles = SCOPE_ITEM.equals(scope) ? item.getBundles() : item.getBundles(bundleName);
+			for (int i = 0; i < bundles.length && duplicate == null; i++) {
+				for (Bitstream bitstream : bundles[i].getBitstreams()) {
+					if (bitstream.getSize() == size && ALGORITHM.equalsIgnoreCase(bitstream.getChecksumAlgorithm())
+							&& checksum.equalsIgnoreCase(bitstream.getChecksum())) {
+						duplicate = bitstream;
+						break;
+					}
+				}
+			}
+		}
+		ScriptMetrics.get().recordPhase("task.dedup", System.nanoTime() - start);
+		return duplicate;
+	}
+
+	/**
+	 * Skip or link a duplicate found by {@link #findDuplicate}. Doesn't commit. The name and description given for the
+	 * file are not applied to the existing bitstream, since that would change it wherever else it appears.
+	 *
+	 * @return a description of what was done, for the console, including any name or description not applied.
+	 */
+	public String handleDuplicate(Item item, String bundleName, Bitstream duplicate, String name, String description) throws SQLException, AuthorizeException {
+		return handle(item, bundleName, duplicate) + notApplied(duplicate, name, description);
+	}
+
+	private String handle(Item item, String bundleName, Bitstream duplicate) throws SQLException, AuthorizeException {
+		Bundle bundle = null;
+		Bundle[] bundles = item.getBundles(bundleName);
+		if (bundles != null && bundles.length > 0 && bundles[0] != null) {
+			bundle = bundles[0];
+		}
+		if (!link || contains(bundle, duplicate)) {
+			return "skipped, same content as existing bitstream id=" + duplicate.getID() + " (" + duplicate.getName() + ")";
+		}
+		if (bundle == null) {
+			bundle = item.createBundle(bundleName);
+		}
+		bundle.addBitstream(duplicate);
+		item.update();
+		return "linked existing bitstream id=" + duplicate.getID() + " (" + duplicate.getName() + ") with the same content into bundle " + bundleName;
+	}
+
+	private static String notApplied(Bitstream duplicate, String name, String description) {
+		boolean nameDiffers = name != null && !name.equals(duplicate.getName());
+		boolean descriptionDiffers = description != null && !description.equals(duplicate.getDescription());
+		if (!nameDiffers && !descriptionDiffers) {
+			return "";
+		}
+		return "; not applied to it: " + (nameDiffers ? "name " + name : "") + (nameDiffers && descriptionDiffers ? ", " : "")
+				+ (descriptionDiffers ? "description " + description : "");
+	}
+
+	private static boolean contains(Bundle bundle, Bitstream bitstream) {
+		if (bundle == null) {
+			return false;
+		}
+		for (Bitstream candidate : bundle.getBitstreams()) {
+			if (candidate.getID() == bitstream.getID()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String checksum(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		}
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return Utils.toHex(digest.digest());
+	}
+}
@@ -0,0 +1,107 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.lang.StringUtils;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.sql.SQLException;
+
+/**
+ * Deletes all values of a metadata field by deleting their metadatavalue rows directly, one batch of items at a time,
+ * for {@link DeleteMetadataField}.
+ *
+ * Changed items are recorded for reindexing, since the discovery index doesn't see changes made this way, and
+ * optionally get their last modified date bumped.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class BulkMetadataDelete implements ItemBatchTask {
+	private final int fieldId;
+	private final String fieldName;
+	private final boolean touchItems;
+	private final boolean dryRun;
+	private final DeferredReindex reindex;
+
+	public BulkMetadataDelete(int fieldId, String fieldName, boolean touchItems, boolean dryRun, DeferredReindex reindex) {
+		this.fieldId = fieldId;
+		this.fieldName = fieldName;
+		this.touchItems = touchItems;
+		this.dryRun = dryRun;
+		this.reindex = reindex;
+	}
+
+	@Override
+	public int process(Context context, int[] itemIds) throws SQLException {
+		if (dryRun) {
+			reportValues(context, itemIds);
+			return 0;
+		}
+		String inClause = " IN (" + ScriptUtils.placeholders(itemIds.length) + ")";
+		long start = System.nanoTime();
+		int[] changedIds = ItemIdSource.collectIds(DatabaseManager.query(context,
+				"SELECT DISTINCT resource_id FROM metadatavalue WHERE resource_type_id = ? AND metadata_field_id = ? AND resource_id" + inClause + " ORDER BY resource_id",
+				ScriptUtils.toParameters(itemIds, Constants.ITEM, fieldId)), "resource_id");
+		ScriptMetrics.get().recordPhase("db.query", System.nanoTime() - start);
+		if (changedIds.length == 0) {
+			return 0;
+		}
+
+		start = System.nanoTime();
+		int deleted = DatabaseManager.updateQuery(context,
+				"DELETE FROM metadatavalue WHERE resource_type_id = ? AND metadata_field_id = ? AND resource_id IN (" + ScriptUtils.placeholders(changedIds.length) + ")",
+				ScriptUtils.toParameters(changedIds, Constants.ITEM, fieldId));
+		ScriptMetrics.get().recordPhase("db.update", System.nanoTime() - start);
+		if (touchItems) {
+			DeferredReindex.touchItems(context, changedIds);
+		}
+		reindex.addAll(changedIds);
+		ScriptMetrics.get().valuesChanged(deleted);
+		if (ReportWriter.get().isEnabled()) {
+			// the rows aren't read in this mode, so report each item's deletion rather than each value
+			for (int id : changedIds) {
+				ReportWriter.get().record(id, fieldName, null, null, "delete all");
+			}
+		} else {
+			System.out.println("items id=" + itemIds[0] + " to id=" + itemIds[itemIds.length - 1] + ": deleted " + deleted
+					+ " value(s) of " + changedIds.length + " item(s) in field " + fieldName);
+		}
+		return changedIds.length;
+	}
+
+	private void reportValues(Context context, int[] itemIds) throws SQLException {
+		long start = System.nanoTime();
+		TableRowIterator rows = DatabaseManager.query(context,
+				"SELECT resource_id, text_value, authority FROM metadatavalue WHERE resource_type_id = ? AND metadata_field_id = ?"
+						+ " AND resource_id IN (" + ScriptUtils.placeholders(itemIds.length) + ") ORDER BY resource_id, place",
+				ScriptUtils.toParameters(itemIds, Constants.ITEM, fieldId));
+		try {
+			ReportWriter report = ReportWriter.get();
+			StringBuilder message = new StringBuilder();
+			int lastItemId = -1;
+			while (rows.hasNext()) {
+				TableRow row = rows.next();
+				int itemId = row.getIntColumn("resource_id");
+				if (report.record(itemId, fieldName, row.getStringColumn("text_value"), null, "delete")) {
+					continue;
+				}
+				if (itemId != lastItemId) {
+					message.append("Dry run, not deleting metadata values for item_id=").append(itemId).append(", field=").append(fieldName).append('\n');
+					lastItemId = itemId;
+				}
+				message.append('\t').append(row.getStringColumn("text_value"));
+				String authority = row.getStringColumn("authority");
+				if (StringUtils.isNotBlank(authority)) {
+					message.append(", authority=").append(authority);
+				}
+				message.append('\n');
+			}
+			System.out.print(message);
+		} finally {
+			rows.close();
+		}
+		ScriptMetrics.get().recordPhase("db.query", System.nanoTime() - start);
+	}
+}
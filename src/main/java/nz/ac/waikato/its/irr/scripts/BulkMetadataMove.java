@@ -0,0 +1,232 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.lang.StringUtils;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves metadata values from one field to another by updating their metadatavalue rows directly, one batch of items at
+ * a time, for {@link MoveMetadataValues}.
+ *
+ * Moved values are placed after any values the item already has in the target field, keeping their relative order.
+ * Without a values matcher, all values of the batch are moved with a single UPDATE statement; with one, the values are
+ * read and matched in Java and only the matching rows are updated. Changed items get their last modified date bumped
+ * and are recorded for reindexing, since the discovery index doesn't see changes made this way.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class BulkMetadataMove implements ItemBatchTask {
+	private final int sourceFieldId;
+	private final String sourceName;
+	private final int targetFieldId;
+	private final String targetName;
+	private final String language;
+	private final VocabularyMatcher valuesMatcher;
+	private final boolean usePreferredCase;
+	private final boolean dryRun;
+	private final DeferredReindex reindex;
+
+	/**
+	 * @param language new language for the moved values, or null to leave it unchanged.
+	 * @param valuesMatcher only move values that match, or null to move all values.
+	 */
+	public BulkMetadataMove(int sourceFieldId, String sourceName, int targetFieldId, String targetName, String language, VocabularyMatcher valuesMatcher, boolean usePreferredCase, boolean dryRun, DeferredReindex reindex) {
+		this.sourceFieldId = sourceFieldId;
+		this.sourceName = sourceName;
+		this.targetFieldId = targetFieldId;
+		this.targetName = targetName;
+		this.language = language;
+		this.valuesMatcher = valuesMatcher;
+		this.usePreferredCase = usePreferredCase;
+		this.dryRun = dryRun;
+		this.reindex = reindex;
+	}
+
+	@Override
+	public int process(Context context, int[] itemIds) throws SQLException {
+		return moveBatch(context, itemIds).length;
+	}
+
+	/**
+	 * Move the values of the given items.
+	 *
+	 * @return the IDs of the items that were changed, in ascending order.
+	 */
+	public int[] moveBatch(Context context, int[] itemIds) throws SQLException {
+		if (valuesMatcher == null && !dryRun) {
+			return moveAll(context, itemIds);
+		}
+		return moveMatching(context, itemIds);
+	}
+
+	private int[] moveAll(Context context, int[] itemIds) throws SQLException {
+		long start = System.nanoTime();
+		int[] changedIds = ItemIdSource.collectIds(DatabaseManager.query(context,
+				"SELECT DISTINCT resource_id FROM metadatavalue WHERE resource_type_id = ? AND metadata_field_id = ? AND resource_id IN ("
+						+ ScriptUtils.placeholders(itemIds.length) + ") ORDER BY resource_id",
+				ScriptUtils.toParameters(itemIds, Constants.ITEM, sourceFieldId)), "resource_id");
+		ScriptMetrics.get().recordPhase("db.query", System.nanoTime() - start);
+		if (changedIds.length == 0) {
+			return changedIds;
+		}
+
+		StringBuilder update = new StringBuilder("UPDATE metadatavalue SET metadata_field_id = ?");
+		List<Object> parameters = new ArrayList<>();
+		parameters.add(targetFieldId);
+		if (language != null) {
+			update.append(", text_lang = ?");
+			parameters.add(language);
+		}
+		if (sourceFieldId != targetFieldId) {
+			update.append(", place = place + COALESCE((SELECT MAX(t.place) FROM metadatavalue t WHERE t.resource_type_id = ?"
+					+ " AND t.metadata_field_id = ? AND t.resource_id = metadatavalue.resource_id), 0)");
+			parameters.add(Constants.ITEM);
+			parameters.add(targetFieldId);
+		}
+		update.append(" WHERE resource_type_id = ? AND metadata_field_id = ? AND resource_id IN (")
+				.append(ScriptUtils.placeholders(changedIds.length)).append(")");
+		parameters.add(Constants.ITEM);
+		parameters.add(sourceFieldId);
+
+		start = System.nanoTime();
+		int moved = DatabaseManager.updateQuery(context, update.toString(), ScriptUtils.toParameters(changedIds, parameters.toArray()));
+		ScriptMetrics.get().recordPhase("db.update", System.nanoTime() - start);
+		DeferredReindex.touchItems(context, changedIds);
+		reindex.addAll(changedIds);
+		ScriptMetrics.get().valuesChanged(moved);
+		if (ReportWriter.get().isEnabled()) {
+			// the rows aren't read in this mode, so report each item's move rather than each value
+			for (int id : changedIds) {
+				ReportWriter.get().record(id, sourceName, null, null, "move all to " + targetName);
+			}
+		} else {
+			System.out.println("items id=" + itemIds[0] + " to id=" + itemIds[itemIds.length - 1] + ": moved " + moved
+					+ " value(s) of " + changedIds.length + " item(s) from field " + sourceName + " to field " + targetName);
+		}
+		return changedIds;
+	}
+
+	private int[] moveMatching(Context context, int[] itemIds) throws SQLException {
+		String inClause = " IN (" + ScriptUtils.placeholders(itemIds.length) + ")";
+		List<Move> moves = new ArrayList<>();
+		int[] match = new int[3];
+		long start = System.nanoTime();
+		TableRowIterator rows = DatabaseManager.query(context,
+				"SELECT metadata_value_id, resource_id, text_value, place FROM metadatavalue WHERE resource_type_id = ? AND metadata_field_id = ?"
+						+ " AND resource_id" + inClause + " ORDER BY resource_id, place",
+				ScriptUtils.toParameters(itemIds, Constants.ITEM, sourceFieldId));
+		try {
+			while (rows.hasNext()) {
+				TableRow row = rows.next();
+				String value = row.getStringColumn("text_value");
+				if (StringUtils.isBlank(value) || (valuesMatcher != null && !valuesMatcher.find(value, match))) {
+					continue;
+				}
+				String newValue = value;
+				if (valuesMatcher != null && usePreferredCase) {
+					newValue = value.substring(0, match[1]) + valuesMatcher.getTerm(match[0]) + value.substring(match[2]);
+				}
+				moves.add(new Move(row.getIntColumn("metadata_value_id"), row.getIntColumn("resource_id"), row.getIntColumn("place"), value, newValue));
+			}
+		} finally {
+			rows.close();
+		}
+		ScriptMetrics.get().recordPhase("db.query", System.nanoTime() - start);
+		if (moves.isEmpty()) {
+			return new int[0];
+		}
+
+		Map<Integer, Integer> nextTargetPlace = new HashMap<>();
+		if (sourceFieldId != targetFieldId) {
+			start = System.nanoTime();
+			TableRowIterator places = DatabaseManager.query(context,
+					"SELECT resource_id, MAX(place) AS max_place FROM metadatavalue WHERE resource_type_id = ? AND metadata_field_id = ?"
+							+ " AND resource_id" + inClause + " GROUP BY resource_id",
+					ScriptUtils.toParameters(itemIds, Constants.ITEM, targetFieldId));
+			try {
+				while (places.hasNext()) {
+					TableRow row = places.next();
+					nextTargetPlace.put(row.getIntColumn("resource_id"), row.getIntColumn("max_place") + 1);
+				}
+			} finally {
+				places.close();
+			}
+			ScriptMetrics.get().recordPhase("db.query", System.nanoTime() - start);
+		}
+
+		List<Integer> changedIds = new ArrayList<>();
+		String update = "UPDATE metadatavalue SET metadata_field_id = ?, text_value = ?, place = ?"
+				+ (language != null ? ", text_lang = ?" : "") + " WHERE metadata_value_id = ?";
+		start = System.nanoTime();
+		try (PreparedStatement statement = dryRun ? null : context.getDBConnection().prepareStatement(update)) {
+			for (Move move : moves) {
+				if (!ReportWriter.get().record(move.itemId, sourceName, move.value, move.newValue, "move to " + targetName)) {
+					System.out.println("item id=" + move.itemId + ": moving value |" + move.value + "| from field " + sourceName
+							+ " to |" + move.newValue + "| field " + targetName);
+				}
+				if (changedIds.isEmpty() || changedIds.get(changedIds.size() - 1) != move.itemId) {
+					changedIds.add(move.itemId);
+				}
+				if (dryRun) {
+					continue;
+				}
+				int place = move.place;
+				if (sourceFieldId != targetFieldId) {
+					Integer next = nextTargetPlace.get(move.itemId);
+					place = next != null ? next : 1;
+					nextTargetPlace.put(move.itemId, place + 1);
+				}
+				int index = 1;
+				statement.setInt(index++, targetFieldId);
+				statement.setString(index++, move.newValue);
+				statement.setInt(index++, place);
+				if (language != null) {
+					statement.setString(index++, language);
+				}
+				statement.setInt(index, move.valueId);
+				statement.addBatch();
+			}
+			if (!dryRun) {
+				statement.executeBatch();
+			}
+		}
+		ScriptMetrics.get().recordPhase("db.update", System.nanoTime() - start);
+
+		int[] ids = new int[changedIds.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = changedIds.get(i);
+		}
+		if (!dryRun) {
+			DeferredReindex.touchItems(context, ids);
+			reindex.addAll(ids);
+			ScriptMetrics.get().valuesChanged(moves.size());
+		}
+		return ids;
+	}
+
+	private static class Move {
+		private final int valueId;
+		private final int itemId;
+		private final int place;
+		private final String value;
+		private final String newValue;
+
+		Move(int valueId, int itemId, int place, String value, String newValue) {
+			this.valueId = valueId;
+			this.itemId = itemId;
+			this.place = place;
+			this.value = value;
+			this.newValue = newValue;
+		}
+	}
+}
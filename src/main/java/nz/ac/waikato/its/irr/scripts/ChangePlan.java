@@ -0,0 +1,364 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.DateFormatUtils;
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Item;
+import org.dspace.content.Metadatum;
+import org.dspace.core.Context;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A reviewed set of metadata changes, written by a dry run and applied later without scanning the repository again.
+ *
+ * For each item and field to change, a plan holds the field's values as seen by the dry run and the values it should
+ * have afterwards, with language, authority and confidence. Applying the plan only loads the items it lists and checks
+ * optimistically that each field still has exactly the values seen by the dry run; if any field of an item has changed
+ * in the meantime, the whole item is skipped and reported.
+ *
+ * Plan files are UTF-8 text, gzipped if the file name ends in .gz. The first line holds the format version and the name
+ * of the script that made the plan; every other line holds one item ID, field, number of old values, number of new
+ * values and then value, language, authority and confidence of each old and new value, all separated by tabs.
+ * Backslashes, tabs and line breaks are escaped with a backslash, and \N stands for a missing language or authority.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class ChangePlan {
+	public static final int VERSION = 1;
+
+	private static final String HEADER = "#change-plan";
+	private static final String NULL = "\\N";
+	private static final int COLUMNS_PER_VALUE = 4;
+
+	private final Map<Integer, List<Change>> changes = new HashMap<>();
+
+	public static void addOptions(Options options) {
+		options.addOption(new Option(null, "plan", true, "With -n, write the changes that would be made to this file, for review and for applying them later with --apply-plan. Optional."));
+		options.addOption(new Option(null, "apply-plan", true, "Apply the changes from a file written by --plan, without looking for items to change again. Items whose metadata changed since the plan was made are skipped. All options other than -n, -h and the options for scripts that process many items are ignored. Optional."));
+	}
+
+	/**
+	 * Start a new plan file for the given script, replacing any existing file.
+	 */
+	public static PlanWriter create(File file, String scriptName) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		if (file.getName().endsWith(".gz")) {
+			out = new GZIPOutputStream(out, ReportWriter.BUFFER_SIZE);
+		}
+		PlanWriter writer = new PlanWriter(file, new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), ReportWriter.BUFFER_SIZE));
+		writer.out.write(HEADER + "\t" + VERSION + "\t" + scriptName + "\t" + DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(System.currentTimeMillis()) + "\n");
+		return writer;
+	}
+
+	/**
+	 * Read a plan file made by the given script.
+	 *
+	 * @throws IllegalArgumentException if the file isn't a plan of a supported version made by the given script.
+	 */
+	public static ChangePlan read(File file, String scriptName) throws IOException {
+		ChangePlan plan = new ChangePlan();
+		InputStream in = new FileInputStream(file);
+		if (file.getName().endsWith(".gz")) {
+			in = new GZIPInputStream(in, ReportWriter.BUFFER_SIZE);
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), ReportWriter.BUFFER_SIZE)) {
+			String header = reader.readLine();
+			String[] headerColumns = header != null ? header.split("\t") : new String[0];
+			if (headerColumns.length < 3 || !HEADER.equals(headerColumns[0])) {
+				throw new IllegalArgumentException(file.getPath() + " is not a change plan");
+			}
+			if (!String.valueOf(VERSION).equals(headerColumns[1])) {
+				throw new IllegalArgumentException("Change plan " + file.getPath() + " has version " + headerColumns[1] + ", only version " + VERSION + " is supported");
+			}
+			if (!scriptName.equals(headerColumns[2])) {
+				throw new IllegalArgumentException("Change plan " + file.getPath() + " was made by " + headerColumns[2] + ", not " + scriptName);
+			}
+			String line;
+			int lineNumber = 1;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.isEmpty()) {
+					continue;
+				}
+				try {
+					plan.add(parseLine(line));
+				} catch (RuntimeException e) {
+					throw new IllegalArgumentException("Line " + lineNumber + " of change plan " + file.getPath() + " is invalid: " + e.getMessage());
+				}
+			}
+		}
+		return plan;
+	}
+
+	private static Change parseLine(String line) {
+		String[] columns = line.split("\t", -1);
+		if (columns.length < 4) {
+			throw new IllegalArgumentException("too few columns");
+		}
+		Change change = new Change(Integer.parseInt(columns[0]), columns[1], new Metadatum[Integer.parseInt(columns[2])], new Metadatum[Integer.parseInt(columns[3])]);
+		if (columns.length != 4 + COLUMNS_PER_VALUE * (change.oldValues.length + change.newValues.length)) {
+			throw new IllegalArgumentException("expected " + change.oldValues.length + " old and " + change.newValues.length + " new values");
+		}
+		int column = 4;
+		for (Metadatum[] values : new Metadatum[][] {change.oldValues, change.newValues}) {
+			for (int i = 0; i < values.length; i++) {
+				Metadatum md = new Metadatum();
+				md.value = unescape(columns[column++]);
+				md.language = unescape(columns[column++]);
+				md.authority = unescape(columns[column++]);
+				md.confidence = Integer.parseInt(columns[column++]);
+				values[i] = md;
+			}
+		}
+		return change;
+	}
+
+	private void add(Change change) {
+		List<Change> itemChanges = changes.get(change.itemId);
+		if (itemChanges == null) {
+			itemChanges = new ArrayList<>();
+			changes.put(change.itemId, itemChanges);
+		}
+		itemChanges.add(change);
+	}
+
+	/**
+	 * @return the IDs of all items the plan changes, in no particular order.
+	 */
+	public int[] getItemIds() {
+		int[] ids = new int[changes.size()];
+		int i = 0;
+		for (Integer id : changes.keySet()) {
+			ids[i++] = id;
+		}
+		return ids;
+	}
+
+	/**
+	 * Apply the plan's changes to one item, if all of its planned fields still have the values seen by the dry run.
+	 *
+	 * @return true if the item was changed (or, on a dry run, would have been), false if it is not in the plan or
+	 * was skipped.
+	 */
+	public boolean apply(Item item, boolean dryRun) throws SQLException, AuthorizeException {
+		List<Change> itemChanges = changes.get(item.getID());
+		if (itemChanges == null) {
+			return false;
+		}
+		for (Change change : itemChanges) {
+			if (!matches(item.getMetadata(change.schema, change.element, change.qualifier, Item.ANY), change.oldValues)) {
+				if (!ReportWriter.get().record(item.getID(), change.field, null, null, "skip, changed since plan was made")) {
+					System.out.println("item id=" + item.getID() + ": skipping, field " + change.field + " has changed since the plan was made");
+				}
+				return false;
+			}
+		}
+		for (Change change : itemChanges) {
+			if (!ReportWriter.get().record(item.getID(), change.field, join(change.oldValues), join(change.newValues), "apply plan")) {
+				System.out.println("item id=" + item.getID() + ": changing field " + change.field + " from |" + join(change.oldValues) + "| to |" + join(change.newValues) + "|");
+			}
+			if (!dryRun) {
+				item.clearMetadata(change.schema, change.element, change.qualifier, Item.ANY);
+				for (Metadatum md : change.newValues) {
+					item.addMetadata(change.schema, change.element, change.qualifier, md.language, md.value, md.authority, md.confidence);
+				}
+				ScriptMetrics.get().valuesChanged(Math.max(change.oldValues.length, change.newValues.length));
+			}
+		}
+		if (!dryRun) {
+			item.updateMetadata();
+		}
+		return true;
+	}
+
+	private static boolean matches(Metadatum[] current, Metadatum[] expected) {
+		if (current.length != expected.length) {
+			return false;
+		}
+		for (int i = 0; i < current.length; i++) {
+			if (!StringUtils.equals(current[i].value, expected[i].value) || !StringUtils.equals(current[i].language, expected[i].language)
+					|| !StringUtils.equals(current[i].authority, expected[i].authority) || current[i].confidence != expected[i].confidence) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String join(Metadatum[] values) {
+		StringBuilder joined = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			joined.append(i > 0 ? "|" : "").append(values[i].value);
+		}
+		return joined.toString();
+	}
+
+	/**
+	 * Apply the plan given with --apply-plan, using the item processing engine with the options on the command line,
+	 * and print how many items were skipped. Exits on invalid options or an unreadable plan.
+	 */
+	public static void applyFromCommandLine(String scriptName, CommandLine line, Options options) {
+		File file = new File(line.getOptionValue("apply-plan"));
+		ChangePlan plan = null;
+		try {
+			plan = read(file, scriptName);
+		} catch (IOException e) {
+			System.err.println("Could not read change plan " + file.getPath() + ": " + e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			ScriptUtils.printHelpAndExit(scriptName, 1, options);
+		}
+		final ChangePlan finalPlan = plan;
+		final boolean dryRun = line.hasOption("n");
+		final AtomicInteger applied = new AtomicInteger();
+
+		ItemProcessingEngine engine = new ItemProcessingEngine(scriptName, new ItemTask() {
+			@Override
+			public boolean process(Context context, Item item) throws SQLException, AuthorizeException {
+				boolean changed = finalPlan.apply(item, dryRun);
+				if (changed) {
+					applied.incrementAndGet();
+				}
+				return changed && !dryRun;
+			}
+		});
+		try {
+			engine.configure(line);
+		} catch (ParseException e) {
+			System.err.println("Could not parse command line options: " + e.getMessage());
+			ScriptUtils.printHelpAndExit(scriptName, 1, options);
+		}
+		int[] itemIds = plan.getItemIds();
+		try {
+			engine.run(ItemIdSource.fromIds(itemIds));
+		} catch (SQLException e) {
+			e.printStackTrace(System.err);
+		}
+		System.out.println(scriptName + ": " + (dryRun ? "would have applied" : "applied") + " change plan " + file.getPath()
+				+ " to " + applied.get() + " of " + itemIds.length + " item(s); the others were skipped or no longer exist");
+	}
+
+	private static String escape(String value) {
+		if (value == null) {
+			return NULL;
+		}
+		StringBuilder escaped = null;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			String replacement = c == '\\' ? "\\\\" : c == '\t' ? "\\t" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : null;
+			if (replacement != null && escaped == null) {
+				escaped = new StringBuilder(value.length() + 16).append(value, 0, i);
+			}
+			if (escaped != null) {
+				if (replacement != null) {
+					escaped.append(replacement);
+				} else {
+					escaped.append(c);
+				}
+			}
+		}
+		return escaped != null ? escaped.toString() : value;
+	}
+
+	private static String unescape(String value) {
+		if (NULL.equals(value)) {
+			return null;
+		}
+		if (value.indexOf('\\') < 0) {
+			return value;
+		}
+		StringBuilder unescaped = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				char next = value.charAt(++i);
+				unescaped.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+			} else {
+				unescaped.append(c);
+			}
+		}
+		return unescaped.toString();
+	}
+
+	/**
+	 * Writes the changes found by a dry run to a plan file. Shared by all worker threads.
+	 */
+	public static class PlanWriter implements Closeable {
+		private final File file;
+		private final Writer out;
+		private int items;
+
+		private PlanWriter(File file, Writer out) {
+			this.file = file;
+			this.out = out;
+		}
+
+		/**
+		 * Add a change to one field of an item to the plan.
+		 *
+		 * @param field the field, as schema.element or schema.element.qualifier.
+		 * @param oldValues all values of the field as the dry run saw them.
+		 * @param newValues all values the field should have after the change.
+		 */
+		public synchronized void record(int itemId, String field, Metadatum[] oldValues, List<Metadatum> newValues) throws IOException {
+			StringBuilder line = new StringBuilder();
+			line.append(itemId).append('\t').append(field).append('\t').append(oldValues.length).append('\t').append(newValues.size());
+			for (Metadatum md : oldValues) {
+				appendValue(line, md);
+			}
+			for (Metadatum md : newValues) {
+				appendValue(line, md);
+			}
+			out.write(line.append('\n').toString());
+			items++;
+		}
+
+		private static void appendValue(StringBuilder line, Metadatum md) {
+			line.append('\t').append(escape(md.value)).append('\t').append(escape(md.language)).append('\t').append(escape(md.authority)).append('\t').append(md.confidence);
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			out.close();
+			System.out.println("Wrote " + items + " change(s) to change plan " + file.getPath());
+		}
+	}
+
+	private static class Change {
+		private final int itemId;
+		private final String field;
+		private final String schema;
+		private final String element;
+		private final String qualifier;
+		private final Metadatum[] oldValues;
+		private final Metadatum[] newValues;
+
+		Change(int itemId, String field, Metadatum[] oldValues, Metadatum[] newValues) {
+			String[] components = field.split("\\.");
+			if (components.length < 2 || components.length > 3) {
+				throw new IllegalArgumentException("unsupported metadata field name " + field);
+			}
+			this.itemId = itemId;
+			this.field = field;
+			this.schema = components[0];
+			this.element = components[1];
+			this.qualifier = components.length > 2 ? components[2] : null;
+			this.oldValues = oldValues;
+			this.newValues = newValues;
+		}
+	}
+}
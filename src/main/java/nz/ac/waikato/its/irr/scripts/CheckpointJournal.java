@@ -0,0 +1,106 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of the last committed item ID per ID range, used to resume an interrupted run of
+ * {@link ItemProcessingEngine}.
+ *
+ * Each line holds the scope (a string identifying the script and its options), the range index and the highest item ID
+ * in that range whose changes have been committed. Entries are only written after a commit and are forced to disk
+ * straight away. A fresh (non-resumed) run writes a start marker for its scope, which hides any older entries for the
+ * same scope. Several scopes can share one journal file.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class CheckpointJournal implements Closeable {
+	private static final String START_MARKER = "start";
+
+	private final File file;
+	private final String scope;
+	private final Map<Integer, Integer> resumePoints = new HashMap<>();
+	private FileChannel channel;
+
+	public CheckpointJournal(File file, String scope) {
+		this.file = file;
+		this.scope = scope.replaceAll("[\\t\\r\\n]", " ");
+	}
+
+	/**
+	 * Open the journal for writing.
+	 *
+	 * @param resume if true, read the existing entries for this scope so that {@link #getResumePoint(int)} can be used;
+	 *               if false, mark the start of a fresh run for this scope.
+	 */
+	public void open(boolean resume) throws IOException {
+		if (resume && file.exists()) {
+			load();
+		}
+		channel = new FileOutputStream(file, true).getChannel();
+		if (!resume) {
+			append(START_MARKER + "\t" + System.currentTimeMillis());
+		}
+	}
+
+	private void load() throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t");
+				if (parts.length != 3 || !parts[0].equals(scope)) {
+					continue;
+				}
+				if (START_MARKER.equals(parts[1])) {
+					resumePoints.clear();
+					continue;
+				}
+				try {
+					int range = Integer.parseInt(parts[1]);
+					int lastId = Integer.parseInt(parts[2]);
+					Integer previous = resumePoints.get(range);
+					if (previous == null || previous < lastId) {
+						resumePoints.put(range, lastId);
+					}
+				} catch (NumberFormatException e) {
+					// most likely a partial line from a crash, ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the highest committed item ID in the given range, or -1 if nothing in this range has been committed.
+	 */
+	public int getResumePoint(int range) {
+		Integer lastId = resumePoints.get(range);
+		return lastId != null ? lastId : -1;
+	}
+
+	/**
+	 * Record that all items in the given range up to and including lastId have been committed.
+	 */
+	public synchronized void record(int range, int lastId) throws IOException {
+		append(range + "\t" + lastId);
+	}
+
+	private void append(String entry) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap((scope + "\t" + entry + "\n").getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		channel.force(false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+}
@@ -32,6 +32,7 @@ public class CopyCollectionConfiguration {
 		option.setRequired(true);
 		OPTIONS.addOption(option);
 		OPTIONS.addOption("h", "help", false, "Print help for this command and exit without taking any action.");
+		ScriptMetrics.addOptions(OPTIONS);
 	}
 
 	public static void main(String[] args) {
@@ -49,6 +50,13 @@ public class CopyCollectionConfiguration {
 			ScriptUtils.printHelpAndExit(CopyCollectionConfiguration.class.getSimpleName(), 0, OPTIONS);
 		}
 
+		try {
+			ScriptMetrics.start(CopyCollectionConfiguration.class.getSimpleName(), line);
+		} catch (ParseException e) {
+			System.err.println("Could not parse command line options: " + e.getMessage());
+			ScriptUtils.printHelpAndExit(CopyCollectionConfiguration.class.getSimpleName(), 1, OPTIONS);
+		}
+
 		if (!line.hasOption("f") || !line.hasOption("t")) {
 			System.err.println("Both 'to' and 'from' option are required.");
 			ScriptUtils.printHelpAndExit(CopyCollectionConfiguration.class.getSimpleName(), 1, OPTIONS);
@@ -123,7 +131,7 @@ public class CopyCollectionConfiguration {
 		}
 		toCollection.update();
 		// default read policy?
-		context.commit();
+		ScriptMetrics.get().timedCommit(context);
 	}
 
 	private static void copyLogo(Collection fromCollection, Collection toCollection) throws SQLException, IOException, AuthorizeException {
@@ -0,0 +1,196 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.dspace.content.Item;
+import org.dspace.core.Context;
+import org.dspace.discovery.IndexingService;
+import org.dspace.discovery.SearchServiceException;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.utils.DSpace;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.BitSet;
+
+/**
+ * Collects the IDs of items changed with direct SQL and brings the rest of DSpace up to date afterwards.
+ *
+ * Changes made via SQL bypass DSpace's content events, so the discovery index doesn't notice them. Record each
+ * changed item with {@link #add(int)}, then call {@link #run(Context)} once all changes are committed; each item is
+ * reindexed exactly once, however often it was recorded.
+ *
+ * The IDs are only held in memory, so they are lost if the run is interrupted. For a run with a checkpoint file, call
+ * {@link #openJournal} so that they are also appended to a side file, which a resumed run reads back in to reindex the
+ * items changed before the interruption as well. Either way, {@link #close()} warns about any items that have not been
+ * reindexed.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class DeferredReindex implements Closeable {
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	private static final String JOURNAL_SUFFIX = ".reindex";
+
+	private final BitSet itemIds = new BitSet();
+	private final int batchSize;
+	private File journalFile;
+	private FileChannel journal;
+
+	public DeferredReindex(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Also record the IDs in a side file next to the given checkpoint file, written before the changes are committed.
+	 *
+	 * @param resume if true, first read the IDs recorded by the interrupted run; if false, start the side file afresh.
+	 */
+	public synchronized void openJournal(File checkpointFile, boolean resume) throws IOException {
+		journalFile = new File(checkpointFile.getPath() + JOURNAL_SUFFIX);
+		if (resume && journalFile.exists()) {
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					try {
+						itemIds.set(Integer.parseInt(line.trim()));
+					} catch (NumberFormatException e) {
+						// most likely a partial line from a crash, ignore
+					}
+				}
+			}
+			if (!itemIds.isEmpty()) {
+				System.out.println("Will also reindex " + itemIds.cardinality() + " item(s) changed before the run was interrupted");
+			}
+		}
+		journal = new FileOutputStream(journalFile, resume).getChannel();
+	}
+
+	public synchronized void add(int itemId) {
+		addAll(new int[] {itemId});
+	}
+
+	public synchronized void addAll(int[] ids) {
+		StringBuilder entries = new StringBuilder();
+		for (int id : ids) {
+			if (!itemIds.get(id)) {
+				itemIds.set(id);
+				entries.append(id).append('\n');
+			}
+		}
+		if (journal != null && entries.length() > 0) {
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(entries.toString().getBytes(StandardCharsets.UTF_8));
+				while (buffer.hasRemaining()) {
+					journal.write(buffer);
+				}
+				journal.force(false);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not write reindex file " + journalFile.getPath(), e);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of distinct items recorded so far.
+	 */
+	public synchronized int size() {
+		return itemIds.cardinality();
+	}
+
+	/**
+	 * Set the last modified date of the given items to now, in the current transaction, as Item.update would.
+	 */
+	public static void touchItems(Context context, int[] ids) throws SQLException {
+		if (ids.length == 0) {
+			return;
+		}
+		long start = System.nanoTime();
+		DatabaseManager.updateQuery(context, "UPDATE item SET last_modified = CURRENT_TIMESTAMP WHERE item_id IN (" + ScriptUtils.placeholders(ids.length) + ")", ScriptUtils.toParameters(ids));
+		ScriptMetrics.get().recordPhase("db.update", System.nanoTime() - start);
+	}
+
+	/**
+	 * Reindex all recorded items, committing the index after every batch.
+	 *
+	 * @return the number of items reindexed.
+	 */
+	public int run(Context context) throws SQLException {
+		IndexingService indexer = new DSpace().getServiceManager().getServiceByName(IndexingService.class.getName(), IndexingService.class);
+		BitSet ids;
+		synchronized (this) {
+			ids = (BitSet) itemIds.clone();
+		}
+		int total = ids.cardinality();
+		int done = 0;
+		int inBatch = 0;
+		for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+			long start = System.nanoTime();
+			Item item = Item.find(context, id);
+			if (item != null) {
+				try {
+					indexer.indexContent(context, item, true);
+				} catch (SQLException e) {
+					System.err.println("Could not reindex item id=" + id + ": " + e.getMessage());
+				} finally {
+					item.decache();
+				}
+			}
+			ScriptMetrics.get().recordPhase("task.reindex", System.nanoTime() - start);
+			done++;
+			if (++inBatch >= batchSize) {
+				commitIndex(indexer);
+				inBatch = 0;
+				System.out.println("Reindexed " + done + " of " + total + " item(s)");
+			}
+		}
+		if (inBatch > 0) {
+			commitIndex(indexer);
+		}
+		synchronized (this) {
+			itemIds.andNot(ids);
+			if (journal != null && itemIds.isEmpty()) {
+				try {
+					journal.truncate(0);
+				} catch (IOException e) {
+					System.err.println("Could not clear reindex file " + journalFile.getPath() + ": " + e.getMessage());
+				}
+			}
+		}
+		return done;
+	}
+
+	/**
+	 * Close the side file, if any, and print a warning if any recorded items haven't been reindexed, eg because the run
+	 * was interrupted.
+	 */
+	@Override
+	public synchronized void close() {
+		if (!itemIds.isEmpty()) {
+			if (journal != null) {
+				System.err.println(itemIds.cardinality() + " changed item(s) have not been reindexed yet; they are listed in "
+						+ journalFile.getPath() + " and will be reindexed when the run is resumed with --resume.");
+			} else {
+				System.err.println(itemIds.cardinality() + " changed item(s) have not been reindexed; run index-discovery to bring the search index up to date.");
+			}
+		}
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				System.err.println("Could not close reindex file " + journalFile.getPath() + ": " + e.getMessage());
+			}
+			journal = null;
+		}
+	}
+
+	private static void commitIndex(IndexingService indexer) {
+		long start = System.nanoTime();
+		try {
+			indexer.commit();
+		} catch (SearchServiceException e) {
+			System.err.println("Could not commit search index: " + e.getMessage());
+		}
+		ScriptMetrics.get().recordPhase("task.reindex.commit", System.nanoTime() - start);
+	}
+}
@@ -5,10 +5,13 @@ import org.apache.commons.lang.StringUtils;
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.content.*;
 import org.dspace.core.Context;
-import org.dspace.workflow.WorkflowItem;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Collections;
 
 /**
  * @author Andrea Schweer schweer@waikato.ac.nz, University of Waikato ITS ISG
@@ -18,11 +21,13 @@ public class DeleteMetadataField {
 	public static final Options OPTIONS = new Options();
 	static {
 		OPTIONS.addOption("n", "dry-run", false, "Don't actually make any changes, just report on what would be done.");
-		Option fieldOption = new Option("f", "field", true, "The metadata field whose values should be deleted. Must follow the pattern schema.element.qualifier or schema.element.");
-		fieldOption.setRequired(true);
-		OPTIONS.addOption(fieldOption);
+		OPTIONS.addOption("f", "field", true, "The metadata field whose values should be deleted. Must follow the pattern schema.element.qualifier or schema.element. Required unless --apply-plan is given.");
 		OPTIONS.addOption("r", "registry", false, "Also remove the field from the metadata registry. This will fail if any withdrawn items or template items contain this metadata field.");
+		OPTIONS.addOption(new Option(null, "bulk", false, "Delete values by deleting their rows from the database directly, a batch of items at a time, instead of updating each item. Changed items are reindexed at the end; with --checkpoint, a resumed run also reindexes the items changed before the interruption."));
+		OPTIONS.addOption(new Option(null, "touch", false, "With --bulk, also set the last modified date of each changed item."));
 		OPTIONS.addOption("h", "help", false, "Print help for this command.");
+		ItemProcessingEngine.addOptions(OPTIONS);
+		ChangePlan.addOptions(OPTIONS);
 	}
 
 	public static void main(String[] args) {
@@ -32,12 +37,17 @@ public class DeleteMetadataField {
 				ScriptUtils.printHelpAndExit(DeleteMetadataField.class.getSimpleName(), 0, OPTIONS);
 			}
 
+			if (line.hasOption("apply-plan")) {
+				ChangePlan.applyFromCommandLine(DeleteMetadataField.class.getSimpleName(), line, OPTIONS);
+				return;
+			}
+
 			if (!line.hasOption("f")) {
 				System.err.println("Field option is required but wasn't give.");
 				ScriptUtils.printHelpAndExit(DeleteMetadataField.class.getSimpleName(), 1, OPTIONS);
 			}
 
-			String field = line.getOptionValue("f");
+			final String field = line.getOptionValue("f");
 			if (StringUtils.isBlank(field)) {
 				System.err.println("A metadata field must be specified using the field option.");
 				ScriptUtils.printHelpAndExit(DeleteMetadataField.class.getSimpleName(), 1, OPTIONS);
@@ -47,108 +57,100 @@ public class DeleteMetadataField {
 				System.err.println("Metadata field given via field option must follow pattern schema.element.qualifier or schema.element");
 				ScriptUtils.printHelpAndExit(DeleteMetadataField.class.getSimpleName(), 1, OPTIONS);
 			}
-            String schema = fieldComponents[0];
-			String element = fieldComponents[1];
-			String qualifier = fieldComponents.length > 2 ? fieldComponents[2] : null;
+			final String schema = fieldComponents[0];
+			final String element = fieldComponents[1];
+			final String qualifier = fieldComponents.length > 2 ? fieldComponents[2] : null;
+			final boolean dryRun = line.hasOption("n");
+			final boolean bulk = line.hasOption("bulk");
+
+			ChangePlan.PlanWriter plan = null;
+			if (line.hasOption("plan")) {
+				if (!dryRun || bulk) {
+					System.err.println("--plan can only be used together with -n and without --bulk");
+					ScriptUtils.printHelpAndExit(DeleteMetadataField.class.getSimpleName(), 1, OPTIONS);
+				}
+				try {
+					plan = ChangePlan.create(new File(line.getOptionValue("plan")), DeleteMetadataField.class.getSimpleName());
+				} catch (IOException e) {
+					System.err.println("Could not create change plan " + line.getOptionValue("plan") + ": " + e.getMessage());
+					System.exit(1);
+				}
+			}
+			final ChangePlan.PlanWriter finalPlan = plan;
 
+			DeferredReindex reindex = new DeferredReindex(DeferredReindex.DEFAULT_BATCH_SIZE);
 			Context context = null;
 			try {
 				context = new Context();
 				context.turnOffAuthorisationSystem();
 
-				ItemIterator affectedItems = Item.findByMetadataField(context, schema, element, qualifier, Item.ANY);
-				while (affectedItems.hasNext()) {
-					Item item = affectedItems.next();
-					if (line.hasOption("n")) {
-						System.out.println("Dry run, not deleting metadata values for item_id=" + item.getID() + ", field=" + field);
-						Metadatum[] values = item.getMetadata(schema, element, qualifier, Item.ANY);
-						for (Metadatum value : values) {
-							System.out.print("\t" + value.value);
-							if (StringUtils.isNotBlank(value.authority)) {
-								System.out.print(", authority=" + value.authority);
-							}
-							System.out.println();
-						}
-					} else {
-						item.clearMetadata(schema, element, qualifier, Item.ANY);
-						item.update();
-					}
-					item.decache();
+				int fieldId = -1;
+				ItemIdSource source = null;
+				try {
+					fieldId = ScriptUtils.findMetadataField(context, schema, element, qualifier).getFieldID();
+					// archived, workflow and workspace items in one pass, driven by the field's values
+					source = ItemIdSource.archivedAndInProgressItemsWithField(context, schema, element, qualifier);
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					ScriptUtils.printHelpAndExit(DeleteMetadataField.class.getSimpleName(), 1, OPTIONS);
 				}
-				context.commit();
-
-				WorkflowItem[] workflowItems = WorkflowItem.findAll(context);
-				for (WorkflowItem wfItem : workflowItems) {
-					Item item = wfItem.getItem();
-					Metadatum[] values = item.getMetadata(schema, element, qualifier, Item.ANY);
-					if (values == null || values.length == 0) {
-						item.decache();
-						continue;
-					}
-					if (line.hasOption("n")) {
-						System.out.println("Dry run, not deleting metadata values for workflow item item_id=" + item.getID() + ", field=" + field);
-						for (Metadatum value : values) {
-							System.out.print("\t" + value.value);
-							if (StringUtils.isNotBlank(value.authority)) {
-								System.out.print(", authority=" + value.authority);
-							}
-							System.out.println();
+
+				ItemProcessingEngine engine;
+				if (bulk) {
+					engine = new ItemProcessingEngine(DeleteMetadataField.class.getSimpleName(), new BulkMetadataDelete(fieldId, field, line.hasOption("touch"), dryRun, reindex));
+				} else {
+					engine = new ItemProcessingEngine(DeleteMetadataField.class.getSimpleName(), new ItemTask() {
+						@Override
+						public boolean process(Context context, Item item) throws SQLException, AuthorizeException, IOException {
+							return deleteValues(context, item, schema, element, qualifier, field, dryRun, finalPlan);
 						}
-					} else {
-						item.clearMetadata(schema, element, qualifier, Item.ANY);
-						item.update();
-					}
-					item.decache();
+					});
 				}
-				context.commit();
-
-				WorkspaceItem[] workspaceItems = WorkspaceItem.findAll(context);
-				for (WorkspaceItem wsItem : workspaceItems) {
-					Item item = wsItem.getItem();
-					Metadatum[] values = item.getMetadata(schema, element, qualifier, Item.ANY);
-					if (values == null || values.length == 0) {
-						item.decache();
-						continue;
-					}
-					if (line.hasOption("n")) {
-						System.out.println("Dry run, not deleting metadata values for workflow item item_id=" + item.getID() + ", field=" + field);
-						for (Metadatum value : values) {
-							System.out.print("\t" + value.value);
-							if (StringUtils.isNotBlank(value.authority)) {
-								System.out.print(", authority=" + value.authority);
-							}
-							System.out.println();
-						}
-					} else {
-						item.clearMetadata(schema, element, qualifier, Item.ANY);
-						item.update();
+				engine.configure(line);
+				if (bulk && engine.getCheckpointFile() != null) {
+					try {
+						reindex.openJournal(engine.getCheckpointFile(), engine.isResuming());
+					} catch (IOException e) {
+						System.err.println("Could not open reindex file for checkpoint " + engine.getCheckpointFile().getPath() + ": " + e.getMessage());
+						System.exit(1);
 					}
-					item.decache();
 				}
-				context.commit();
+				Shard shard = engine.getShard();
+				context.abort();
+
+				engine.run(source);
+
+				context = new Context();
+				context.turnOffAuthorisationSystem();
+				if (reindex.size() > 0) {
+					System.out.println("Reindexing " + reindex.size() + " changed item(s)");
+					reindex.run(context);
+				}
 
 				if (line.hasOption("r")) {
-					if (line.hasOption("n")) {
+					if (dryRun) {
 						System.out.println("Dry run, not deleting field " + field + " from metadata registry");
+					} else if (shard != Shard.ALL) {
+						System.out.println("Not deleting field " + field + " from metadata registry while running for shard " + shard + "; run again with -r but without --shard once all shards have finished.");
 					} else {
-						try {
-							MetadataSchema registrySchema = MetadataSchema.find(context, schema);
-							MetadataField registryField = MetadataField.findByElement(context, registrySchema.getSchemaID(), element, qualifier);
-							registryField.delete(context);
-							context.commit();
-						} catch (Exception e) {
-							System.err.println("Could not delete field " + field + " from metadata registry; check withdrawn items and template items.");
-							System.err.println(e.getMessage());
-						}
+						deleteFromRegistry(context, fieldId, field);
 					}
 				}
 				context.complete();
-			} catch (SQLException | AuthorizeException | IOException e) {
+			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 			} finally {
 				if (context != null && context.isValid()) {
 					context.abort();
 				}
+				reindex.close();
+				if (plan != null) {
+					try {
+						plan.close();
+					} catch (IOException e) {
+						System.err.println("Could not write change plan " + line.getOptionValue("plan") + ": " + e.getMessage());
+					}
+				}
 			}
 		} catch (ParseException e) {
 			System.err.println("Could not parse arguments: " + e.getMessage());
@@ -156,4 +158,61 @@ public class DeleteMetadataField {
 		}
 	}
 
+	/**
+	 * Delete the field from the registry, but only if no values are left anywhere, eg in withdrawn items, template
+	 * items or other types of objects. Otherwise, report how many values are left and leave the field alone.
+	 */
+	private static void deleteFromRegistry(Context context, int fieldId, String field) throws SQLException {
+		TableRow row = DatabaseManager.querySingle(context, "SELECT COUNT(*) AS remaining FROM metadatavalue WHERE metadata_field_id = ?", fieldId);
+		long remaining = row != null ? row.getLongColumn("remaining") : 0;
+		if (remaining > 0) {
+			System.err.println("Not deleting field " + field + " from metadata registry: " + remaining + " value(s) are left, eg in withdrawn items or template items.");
+			return;
+		}
+		try {
+			MetadataField.find(context, fieldId).delete(context);
+			context.commit();
+			System.out.println("Deleted field " + field + " from metadata registry");
+		} catch (AuthorizeException | SQLException e) {
+			System.err.println("Could not delete field " + field + " from metadata registry: " + e.getMessage());
+		}
+	}
+
+	private static boolean deleteValues(Context context, Item item, String schema, String element, String qualifier, String field, boolean dryRun, ChangePlan.PlanWriter plan) throws SQLException, AuthorizeException, IOException {
+		Metadatum[] values = item.getMetadata(schema, element, qualifier, Item.ANY);
+		if (values == null || values.length == 0) {
+			return false;
+		}
+		if (dryRun && plan != null) {
+			plan.record(item.getID(), field, values, Collections.<Metadatum>emptyList());
+		}
+		if (ReportWriter.get().isEnabled()) {
+			for (Metadatum value : values) {
+				ReportWriter.get().record(item.getID(), field, value.value, null, "delete");
+			}
+		}
+		if (dryRun) {
+			if (!ReportWriter.get().isEnabled()) {
+				String description = "item";
+				if (!item.isArchived()) {
+					description = WorkspaceItem.findByItem(context, item) != null ? "workspace item" : "workflow item";
+				}
+				StringBuilder message = new StringBuilder("Dry run, not deleting metadata values for " + description + " item_id=" + item.getID() + ", field=" + field);
+				for (Metadatum value : values) {
+					message.append("\n\t").append(value.value);
+					if (StringUtils.isNotBlank(value.authority)) {
+						message.append(", authority=").append(value.authority);
+					}
+				}
+				System.out.println(message);
+			}
+			return false;
+		} else {
+			item.clearMetadata(schema, element, qualifier, Item.ANY);
+			item.update();
+			ScriptMetrics.get().valuesChanged(values.length);
+			return true;
+		}
+	}
+
 }
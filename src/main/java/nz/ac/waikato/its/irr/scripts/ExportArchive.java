@@ -0,0 +1,189 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A single archive file that an export is streamed into, entry by entry, without any temporary files: either a ZIP
+ * file or a gzipped tar file, depending on the file name.
+ *
+ * Entries are written one after the other; the data of each entry is copied from an input stream, so callers can
+ * compute checksums on the fly by wrapping that stream.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public abstract class ExportArchive implements Closeable {
+	static final int BUFFER_SIZE = 1 << 16;
+
+	protected final byte[] buffer = new byte[BUFFER_SIZE];
+
+	/**
+	 * Create a new archive, replacing any existing file.
+	 *
+	 * @throws IllegalArgumentException if the file name doesn't end in .zip, .tar.gz or .tgz.
+	 */
+	public static ExportArchive create(File file) throws IOException {
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".zip")) {
+			return new Zip(new BufferedOutputStream(new FileOutputStream(file), ReportWriter.BUFFER_SIZE));
+		} else if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+			return new TarGz(new GZIPOutputStream(new FileOutputStream(file), ReportWriter.BUFFER_SIZE));
+		}
+		throw new IllegalArgumentException("Archive file name must end in .zip, .tar.gz or .tgz: " + file.getPath());
+	}
+
+	/**
+	 * Add an entry with the content of the given stream. The stream is read to the end but not closed.
+	 *
+	 * @param size the number of bytes the stream is expected to hold.
+	 * @return the number of bytes actually read from the stream.
+	 */
+	public abstract long addEntry(String name, long size, InputStream in) throws IOException;
+
+	/**
+	 * Add an entry with the given text, encoded as UTF-8.
+	 */
+	public void addEntry(String name, String content) throws IOException {
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		addEntry(name, bytes.length, new ByteArrayInputStream(bytes));
+	}
+
+	protected long copy(InputStream in, OutputStream out) throws IOException {
+		long total = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			total += read;
+		}
+		return total;
+	}
+
+	private static class Zip extends ExportArchive {
+		private final ZipOutputStream out;
+
+		Zip(OutputStream out) {
+			this.out = new ZipOutputStream(out, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public long addEntry(String name, long size, InputStream in) throws IOException {
+			out.putNextEntry(new ZipEntry(name));
+			long total = copy(in, out);
+			out.closeEntry();
+			return total;
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Minimal POSIX (pax) tar writer: regular files only, with a pax extended header for names that don't fit into
+	 * the ustar header and for sizes of 8 GB and more.
+	 */
+	private static class TarGz extends ExportArchive {
+		private static final int BLOCK_SIZE = 512;
+		private static final long MAX_USTAR_SIZE = 077777777777L;
+
+		private final OutputStream out;
+		private final long modified = System.currentTimeMillis() / 1000;
+
+		TarGz(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public long addEntry(String name, long size, InputStream in) throws IOException {
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			if (nameBytes.length > 100 || size > MAX_USTAR_SIZE) {
+				StringBuilder records = new StringBuilder();
+				if (nameBytes.length > 100) {
+					records.append(paxRecord("path", name));
+				}
+				if (size > MAX_USTAR_SIZE) {
+					records.append(paxRecord("size", Long.toString(size)));
+				}
+				byte[] recordBytes = records.toString().getBytes(StandardCharsets.UTF_8);
+				writeHeader("PaxHeader", recordBytes.length, (byte) 'x');
+				out.write(recordBytes);
+				pad(recordBytes.length);
+			}
+			writeHeader(name, size, (byte) '0');
+
+			// the size is already in the header, so write exactly that many bytes whatever the stream holds
+			long total = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				long room = size - total;
+				if (room > 0) {
+					out.write(buffer, 0, (int) Math.min(read, room));
+				}
+				total += read;
+			}
+			for (long missing = size - total; missing > 0; missing -= BLOCK_SIZE) {
+				out.write(new byte[(int) Math.min(missing, BLOCK_SIZE)]);
+			}
+			pad(size);
+			return total;
+		}
+
+		private static String paxRecord(String key, String value) {
+			// the length includes the length field itself, which may need one more digit once that is counted
+			int base = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+			int length = base + Integer.toString(base).length();
+			if (Integer.toString(length).length() > Integer.toString(base).length()) {
+				length = base + Integer.toString(length).length();
+			}
+			return length + " " + key + "=" + value + "\n";
+		}
+
+		private void writeHeader(String name, long size, byte type) throws IOException {
+			byte[] header = new byte[BLOCK_SIZE];
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+			octal(header, 100, 8, 0644);
+			octal(header, 108, 8, 0);
+			octal(header, 116, 8, 0);
+			octal(header, 124, 12, Math.min(size, MAX_USTAR_SIZE));
+			octal(header, 136, 12, modified);
+			header[156] = type;
+			System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+			Arrays.fill(header, 148, 156, (byte) ' ');
+			long checksum = 0;
+			for (byte b : header) {
+				checksum += b & 0xff;
+			}
+			octal(header, 148, 7, checksum);
+			out.write(header);
+		}
+
+		private static void octal(byte[] header, int offset, int length, long value) {
+			String digits = Long.toOctalString(value);
+			int width = length - 1;
+			for (int i = 0; i < width; i++) {
+				int digit = i - (width - digits.length());
+				header[offset + i] = (byte) (digit >= 0 ? digits.charAt(digit) : '0');
+			}
+			header[offset + width] = 0;
+		}
+
+		private void pad(long size) throws IOException {
+			int remainder = (int) (size % BLOCK_SIZE);
+			if (remainder > 0) {
+				out.write(new byte[BLOCK_SIZE - remainder]);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.write(new byte[2 * BLOCK_SIZE]);
+			out.close();
+		}
+	}
+}
@@ -1,37 +1,44 @@
 package nz.ac.waikato.its.irr.scripts;
 
 import org.apache.commons.cli.*;
-import org.dspace.app.bulkedit.DSpaceCSV;
-import org.dspace.app.bulkedit.MetadataExport;
+import org.apache.commons.lang.StringUtils;
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.content.Bitstream;
 import org.dspace.content.Bundle;
 import org.dspace.content.Item;
-import org.dspace.content.ItemIterator;
 import org.dspace.core.Constants;
 import org.dspace.core.Context;
+import org.dspace.core.Utils;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.util.*;
 
 /**
  * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
  */
 public class ExportFulltextForAuthor {
 	private static final Options OPTIONS = new Options();
+	private static final String METADATA_FILE_NAME = "metadata.csv";
 
 	static {
-		Option option = new Option("a", "author", true, "The name of the author for which to do the export, in \"lastname, firstname\" format including the double quotes. Required.");
-		option.setRequired(true);
-		OPTIONS.addOption(option);
-		option = new Option("d", "dir", true, "Destination directory for the export. The directory will be created if it doesn't exist and must be writeable by the user running the script. Required.");
-		option.setRequired(true);
-		OPTIONS.addOption(option);
-		OPTIONS.addOption("m", "metadata", false, "If given, also export metadata CSV for all items by this author.");
+		OPTIONS.addOption("a", "author", true, "The name of the author for which to do the export, in \"lastname, firstname\" format including the double quotes. Required unless -A is given.");
+		OPTIONS.addOption("A", "authors-file", true, "File listing several authors for which to do the export, one per line: the author's name in \"lastname, firstname\" format or their authority key, optionally followed by a tab and the name of the author's directory within the destination directory. All authors are looked up at once, and the bitstreams of items by more than one of them are copied once and hard-linked into each of their directories. Cannot be combined with -a or -z.");
+		OPTIONS.addOption("d", "dir", true, "Destination directory for the export. The directory will be created if it doesn't exist and must be writeable by the user running the script. Required unless -z is given.");
+		OPTIONS.addOption("z", "archive", true, "Stream the export into this ZIP (.zip) or gzipped tar (.tar.gz or .tgz) file instead of a directory, checking each bitstream against its stored checksum and adding a manifest of the results. Required unless -d is given.");
+		OPTIONS.addOption("m", "metadata", false, "If given, also export metadata CSV for all items by this author, or for each author with -A.");
+		OPTIONS.addOption(new Option(null, "threads", true, "Number of bitstreams to copy at the same time. Not used with -z. Optional. Default is " + BitstreamCopier.DEFAULT_THREADS + "."));
 		OPTIONS.addOption("h", "help", false, "Print help for this command and exit without taking any action.");
+		ScriptMetrics.addOptions(OPTIONS);
 	}
 
 	public static void main(String[] args) {
@@ -47,6 +54,36 @@ public class ExportFulltextForAuthor {
 			ScriptUtils.printHelpAndExit(ExportFulltextForAuthor.class.getSimpleName(), 0, OPTIONS);
 		}
 
+		int threads = BitstreamCopier.DEFAULT_THREADS;
+		try {
+			ScriptMetrics.start(ExportFulltextForAuthor.class.getSimpleName(), line);
+			if (line.hasOption("threads")) {
+				threads = ItemProcessingEngine.parsePositiveInt(line, "threads");
+			}
+		} catch (ParseException e) {
+			System.err.println("Could not parse command line options: " + e.getMessage());
+			ScriptUtils.printHelpAndExit(ExportFulltextForAuthor.class.getSimpleName(), 1, OPTIONS);
+		}
+
+		if (line.hasOption("a") == line.hasOption("A")) {
+			System.err.println("Exactly one of -a and -A is required.");
+			ScriptUtils.printHelpAndExit(ExportFulltextForAuthor.class.getSimpleName(), 1, OPTIONS);
+		}
+		if (line.hasOption("A") && line.hasOption("z")) {
+			System.err.println("-A cannot be combined with -z.");
+			ScriptUtils.printHelpAndExit(ExportFulltextForAuthor.class.getSimpleName(), 1, OPTIONS);
+		}
+		if (line.hasOption("d") == line.hasOption("z")) {
+			System.err.println("Exactly one of -d and -z is required.");
+			ScriptUtils.printHelpAndExit(ExportFulltextForAuthor.class.getSimpleName(), 1, OPTIONS);
+		}
+
+		String authorName = line.getOptionValue("a");
+		if (line.hasOption("z")) {
+			exportToArchive(authorName, new File(line.getOptionValue("z")), line.hasOption("m"));
+			return;
+		}
+
 		File destDir = new File(line.getOptionValue("d"));
 		if (!destDir.exists()) {
 			try {
@@ -64,51 +101,427 @@ public class ExportFulltextForAuthor {
 			ScriptUtils.printHelpAndExit(ExportFulltextForAuthor.class.getSimpleName(), 1, OPTIONS);
 		}
 
-		String authorName = line.getOptionValue("a");
+		if (line.hasOption("A")) {
+			exportAuthors(new File(line.getOptionValue("A")), destDir, threads, line.hasOption("m"));
+			return;
+		}
+
 		Context context = null;
 		try {
 			context = new Context(Context.READ_ONLY);
 			context.turnOffAuthorisationSystem();
-			ItemIterator items = getAuthorItems(context, authorName);
-			while (items.hasNext()) {
-				Item item = items.next();
-				System.out.println("Processing item id=" + item.getID());
-				Bundle[] contentBundles = item.getBundles(Constants.CONTENT_BUNDLE_NAME);
-				for (Bundle bundle : contentBundles) {
-					Bitstream[] bitstreams = bundle.getBitstreams();
+			List<Integer> itemIds = findAuthorItemIds(context, authorName);
+			MetadataCsvWriter csv = line.hasOption("m") ? createMetadataCsv(context, itemIds, new File(destDir, METADATA_FILE_NAME)) : null;
+			BitstreamCopier copier = new BitstreamCopier(threads);
+			try {
+				for (int itemId : itemIds) {
+					Item item = Item.find(context, itemId);
+					List<Bitstream> bitstreams = getContentBitstreams(item);
+					BitstreamCopier.ItemProgress progress = copier.startItem(context, item.getID(), bitstreams);
 					for (Bitstream bitstream : bitstreams) {
-						System.out.println("Processing bitstream id=" + bitstream.getID() + ", name=" + bitstream.getName());
-						Path target = new File(destDir, item.getID() + "_" + bitstream.getID() + "_" + bitstream.getName()).toPath();
-						try {
-							Files.copy(bitstream.retrieve(), target);
-							System.out.println("Created file " + target.toString());
-						} catch (IOException e) {
-							System.err.println("Could not save this bitstream, skipping. Reason: " + e.getMessage());
+						copier.copy(context, progress, bitstream, new File(destDir, getExportFileName(item, bitstream)).toPath());
+					}
+					if (csv != null) {
+						csv.write(item);
+					}
+					item.decache();
+				}
+			} finally {
+				try {
+					copier.close();
+				} finally {
+					closeMetadataCsv(csv, new File(destDir, METADATA_FILE_NAME));
+				}
+			}
+		} catch (SQLException | IOException e) {
+			e.printStackTrace(System.err);
+		} catch (InterruptedException e) {
+			System.err.println("Interrupted while waiting for bitstream copies to finish");
+			Thread.currentThread().interrupt();
+		} finally {
+			if (context != null && context.isValid()) {
+				context.abort();
+			}
+		}
+	}
+
+	/**
+	 * Export the items of all authors listed in the given file, each into their own directory. The items are found with
+	 * a single query, and each item is read only once: the first of its authors gets a copy of its bitstreams, and the
+	 * others get hard links to that copy.
+	 */
+	private static void exportAuthors(File authorsFile, File destDir, int threads, boolean withMetadata) {
+		List<AuthorExport> authors = null;
+		try {
+			authors = AuthorExport.readAll(authorsFile, destDir);
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println("Could not read authors file " + authorsFile.getPath() + ": " + e.getMessage());
+			ScriptUtils.printHelpAndExit(ExportFulltextForAuthor.class.getSimpleName(), 1, OPTIONS);
+		}
+
+		Context context = null;
+		try {
+			context = new Context(Context.READ_ONLY);
+			context.turnOffAuthorisationSystem();
+			SortedMap<Integer, List<AuthorExport>> itemAuthors = AuthorExport.findItems(context, authors);
+			for (AuthorExport author : authors) {
+				Files.createDirectories(author.dir.toPath());
+				System.out.println("Author " + author.key + ": " + author.itemIds.size() + " item(s), exporting to " + author.dir.getPath());
+			}
+			System.out.println("Exporting " + itemAuthors.size() + " distinct item(s) for " + authors.size() + " author(s)");
+
+			Map<AuthorExport, MetadataCsvWriter> csvs = new HashMap<>();
+			BitstreamCopier copier = new BitstreamCopier(threads);
+			try {
+				if (withMetadata) {
+					for (AuthorExport author : authors) {
+						csvs.put(author, createMetadataCsv(context, author.itemIds, new File(author.dir, METADATA_FILE_NAME)));
+					}
+				}
+				for (Map.Entry<Integer, List<AuthorExport>> entry : itemAuthors.entrySet()) {
+					Item item = Item.find(context, entry.getKey());
+					List<Bitstream> bitstreams = getContentBitstreams(item);
+					BitstreamCopier.ItemProgress progress = copier.startItem(context, item.getID(), bitstreams);
+					List<AuthorExport> itemAuthorList = entry.getValue();
+					for (Bitstream bitstream : bitstreams) {
+						String fileName = getExportFileName(item, bitstream);
+						List<Path> links = new ArrayList<>();
+						for (AuthorExport author : itemAuthorList.subList(1, itemAuthorList.size())) {
+							links.add(new File(author.dir, fileName).toPath());
+						}
+						copier.copy(context, progress, bitstream, new File(itemAuthorList.get(0).dir, fileName).toPath(), links);
+					}
+					for (AuthorExport author : itemAuthorList) {
+						if (csvs.containsKey(author)) {
+							csvs.get(author).write(item);
 						}
 					}
+					item.decache();
+				}
+			} finally {
+				try {
+					copier.close();
+				} finally {
+					for (AuthorExport author : authors) {
+						closeMetadataCsv(csvs.get(author), new File(author.dir, METADATA_FILE_NAME));
+					}
+				}
+			}
+		} catch (SQLException | IOException e) {
+			e.printStackTrace(System.err);
+		} catch (InterruptedException e) {
+			System.err.println("Interrupted while waiting for bitstream copies to finish");
+			Thread.currentThread().interrupt();
+		} finally {
+			if (context != null && context.isValid()) {
+				context.abort();
+			}
+		}
+	}
+
+	private static MetadataCsvWriter createMetadataCsv(Context context, List<Integer> itemIds, File file) throws SQLException, IOException {
+		SortedSet<String> columns = MetadataCsvWriter.findColumns(context, itemIds);
+		System.out.println("Exporting metadata of " + itemIds.size() + " item(s) in " + columns.size() + " column(s) to file " + file.getPath());
+		return new MetadataCsvWriter(file, columns);
+	}
+
+	private static void closeMetadataCsv(MetadataCsvWriter csv, File file) throws IOException {
+		if (csv != null) {
+			csv.close();
+			System.out.println("Exported metadata of " + csv.getRows() + " item(s) to file " + file.getPath());
+		}
+	}
+
+	/**
+	 * Stream all bitstreams and optionally the metadata into a single archive, computing each bitstream's checksum while
+	 * it is being written and comparing it with the checksum DSpace has stored. The results go into a manifest file,
+	 * which is the last entry of the archive.
+	 */
+	private static void exportToArchive(String authorName, File archiveFile, boolean withMetadata) {
+		StringBuilder manifest = new StringBuilder("path\titem_id\tbitstream_id\tsize\tchecksum_algorithm\texpected_checksum\tactual_checksum\tstatus\n");
+		int bitstreamCount = 0;
+		int problemCount = 0;
+		Context context = null;
+		File csvFile = null;
+		MetadataCsvWriter csv = null;
+		try (ExportArchive archive = ExportArchive.create(archiveFile)) {
+			context = new Context(Context.READ_ONLY);
+			context.turnOffAuthorisationSystem();
+			List<Integer> itemIds = findAuthorItemIds(context, authorName);
+			if (withMetadata) {
+				// the archive is written strictly in sequence, so the rows go to a temporary file until all bitstreams are in
+				csvFile = File.createTempFile("metadata", ".csv");
+				csv = createMetadataCsv(context, itemIds, csvFile);
+			}
+			for (int itemId : itemIds) {
+				Item item = Item.find(context, itemId);
+				int itemBitstreams = 0;
+				int itemProblems = 0;
+				for (Bitstream bitstream : getContentBitstreams(item)) {
+					String status = archiveBitstream(archive, getExportFileName(item, bitstream), item, bitstream, manifest);
+					itemBitstreams++;
+					if (!"OK".equals(status)) {
+						itemProblems++;
+						System.err.println("item id=" + item.getID() + ": bitstream id=" + bitstream.getID() + ", name=" + bitstream.getName() + ": " + status);
+					}
+				}
+				System.out.println("item id=" + item.getID() + ": archived " + itemBitstreams + " bitstream(s), " + itemProblems + " with problems");
+				bitstreamCount += itemBitstreams;
+				problemCount += itemProblems;
+				if (itemProblems > 0) {
+					ScriptMetrics.get().itemFailed();
+				} else {
+					ScriptMetrics.get().itemProcessed(false);
+				}
+				if (csv != null) {
+					csv.write(item);
 				}
 				item.decache();
 			}
-			if (line.hasOption("m")) {
-				System.out.println("Exporting metadata");
-				items = getAuthorItems(context, authorName);
-				MetadataExport mdExport = new MetadataExport(context, items, true);
-				DSpaceCSV csv = mdExport.export();
-				String filename = destDir.getCanonicalPath() + File.separator + "metadata.csv";
-				csv.save(filename);
-				System.out.println("Exported metadata to file " + filename);
+			if (csv != null) {
+				csv.close();
+				try (InputStream in = new FileInputStream(csvFile)) {
+					archive.addEntry(METADATA_FILE_NAME, csvFile.length(), in);
+				}
 			}
+			archive.addEntry("manifest.tsv", manifest.toString());
+			System.out.println("Exported " + bitstreamCount + " bitstream(s) to " + archiveFile.getPath() + ", " + problemCount
+					+ " with problems; see manifest.tsv in the archive for details");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			ScriptUtils.printHelpAndExit(ExportFulltextForAuthor.class.getSimpleName(), 1, OPTIONS);
 		} catch (SQLException | AuthorizeException | IOException e) {
+			System.err.println("Export to " + archiveFile.getPath() + " failed, the archive is incomplete: " + e.getMessage());
 			e.printStackTrace(System.err);
 		} finally {
+			if (csv != null) {
+				try {
+					csv.close();
+				} catch (IOException e) {
+					// only the temporary file is affected
+				}
+			}
+			if (csvFile != null && !csvFile.delete()) {
+				System.err.println("Could not delete temporary file " + csvFile.getPath());
+			}
 			if (context != null && context.isValid()) {
 				context.abort();
 			}
 		}
 	}
 
-	private static ItemIterator getAuthorItems(Context context, String authorName) throws SQLException, AuthorizeException, IOException {
-		return Item.findByMetadataField(context, "dc", "contributor", "author", authorName);
+	/**
+	 * Add one bitstream to the archive and its line to the manifest.
+	 *
+	 * @return the bitstream's status in the manifest: OK if its size and checksum match the stored ones.
+	 */
+	private static String archiveBitstream(ExportArchive archive, String path, Item item, Bitstream bitstream, StringBuilder manifest) throws SQLException, AuthorizeException, IOException {
+		String algorithm = bitstream.getChecksumAlgorithm();
+		String expected = bitstream.getChecksum();
+		MessageDigest digest = null;
+		if (algorithm != null) {
+			try {
+				digest = MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				// can't verify this one, but still export it
+			}
+		}
+
+		InputStream in;
+		try {
+			in = bitstream.retrieve();
+		} catch (IOException e) {
+			// nothing has been written to the archive yet, so just leave this bitstream out
+			String status = "FAILED: " + e.getMessage();
+			appendManifestLine(manifest, path, item, bitstream, 0, "", status);
+			return status;
+		}
+		long size;
+		long start = System.nanoTime();
+		// a read error from here on leaves a broken entry behind, so it ends the export
+		try (InputStream stream = digest != null ? new DigestInputStream(in, digest) : in) {
+			size = archive.addEntry(path, bitstream.getSize(), stream);
+		}
+		ScriptMetrics.get().recordPhase("assetstore.copy", System.nanoTime() - start);
+		String actual = digest != null ? Utils.toHex(digest.digest()) : "";
+		String status;
+		if (size != bitstream.getSize()) {
+			status = "SIZE MISMATCH";
+		} else if (digest == null || expected == null) {
+			status = "NOT VERIFIED";
+		} else if (!actual.equalsIgnoreCase(expected)) {
+			status = "CHECKSUM MISMATCH";
+		} else {
+			status = "OK";
+		}
+		appendManifestLine(manifest, path, item, bitstream, size, actual, status);
+		return status;
+	}
+
+	private static void appendManifestLine(StringBuilder manifest, String path, Item item, Bitstream bitstream, long size, String actual, String status) {
+		String algorithm = bitstream.getChecksumAlgorithm();
+		String expected = bitstream.getChecksum();
+		manifest.append(path.replace('\t', ' ')).append('\t').append(item.getID()).append('\t').append(bitstream.getID())
+				.append('\t').append(size).append('\t').append(algorithm != null ? algorithm : "")
+				.append('\t').append(expected != null ? expected : "").append('\t').append(actual)
+				.append('\t').append(status.replace('\t', ' ').replace('\n', ' ')).append('\n');
+	}
+
+	private static List<Bitstream> getContentBitstreams(Item item) throws SQLException {
+		List<Bitstream> bitstreams = new ArrayList<>();
+		for (Bundle bundle : item.getBundles(Constants.CONTENT_BUNDLE_NAME)) {
+			bitstreams.addAll(Arrays.asList(bundle.getBitstreams()));
+		}
+		return bitstreams;
+	}
+
+	private static String getExportFileName(Item item, Bitstream bitstream) {
+		return item.getID() + "_" + bitstream.getID() + "_" + bitstream.getName();
+	}
+
+	/**
+	 * @return the IDs of all archived items with the given author name, in ascending order; the same items that
+	 * Item.findByMetadataField finds, without loading them yet.
+	 */
+	private static List<Integer> findAuthorItemIds(Context context, String authorName) throws SQLException {
+		int fieldId = ScriptUtils.findMetadataField(context, "dc", "contributor", "author").getFieldID();
+		long start = System.nanoTime();
+		int[] ids = ItemIdSource.collectIds(DatabaseManager.query(context, "SELECT DISTINCT mv.resource_id FROM metadatavalue mv, item i"
+				+ " WHERE mv.resource_id = i.item_id AND mv.resource_type_id = ? AND mv.metadata_field_id = ? AND i.in_archive = '1'"
+				+ " AND " + ScriptUtils.textValueColumn("mv") + " = ? ORDER BY mv.resource_id", Constants.ITEM, fieldId, authorName), "resource_id");
+		ScriptMetrics.get().recordPhase("db.query", System.nanoTime() - start);
+		List<Integer> itemIds = new ArrayList<>(ids.length);
+		for (int id : ids) {
+			itemIds.add(id);
+		}
+		return itemIds;
 	}
 
+	/**
+	 * One author from an authors file, with the directory to export to and the IDs of the author's items.
+	 */
+	static final class AuthorExport {
+		final String key;
+		final File dir;
+		final List<Integer> itemIds = new ArrayList<>();
+
+		AuthorExport(String key, File dir) {
+			this.key = key;
+			this.dir = dir;
+		}
+
+		/**
+		 * Read authors from a file with one author per line: name or authority key, and optionally the name of the
+		 * author's directory within destDir, separated by a tab. Without a directory name, the directory is named after
+		 * the name or authority key. Blank lines and lines starting with # are ignored.
+		 */
+		static List<AuthorExport> readAll(File file, File destDir) throws IOException {
+			List<AuthorExport> authors = new ArrayList<>();
+			Set<String> keys = new HashSet<>();
+			Set<String> dirNames = new HashSet<>();
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+				String line;
+				int lineNumber = 0;
+				while ((line = reader.readLine()) != null) {
+					lineNumber++;
+					if (StringUtils.isBlank(line) || line.trim().startsWith("#")) {
+						continue;
+					}
+					String[] columns = line.split("\t", -1);
+					String key = columns[0].trim();
+					if (columns.length > 2 || key.isEmpty()) {
+						throw new IllegalArgumentException("Line " + lineNumber + " needs an author name or authority key and optionally a directory name, separated by a tab");
+					}
+					String dirName = columns.length > 1 && StringUtils.isNotBlank(columns[1]) ? columns[1].trim() : toDirName(key);
+					if (dirName.isEmpty() || ".".equals(dirName) || "..".equals(dirName) || dirName.contains("/") || dirName.contains(File.separator)) {
+						throw new IllegalArgumentException("Line " + lineNumber + ": unsuitable directory name " + dirName);
+					}
+					if (!keys.add(key)) {
+						throw new IllegalArgumentException("Line " + lineNumber + ": author " + key + " is listed more than once");
+					}
+					if (!dirNames.add(dirName)) {
+						throw new IllegalArgumentException("Line " + lineNumber + ": directory name " + dirName + " is already used for another author");
+					}
+					authors.add(new AuthorExport(key, new File(destDir, dirName)));
+				}
+			}
+			if (authors.isEmpty()) {
+				throw new IllegalArgumentException("No authors listed");
+			}
+			return authors;
+		}
+
+		private static String toDirName(String key) {
+			return StringUtils.strip(key.replaceAll("[^\\p{L}\\p{N}.-]+", "_"), "_.");
+		}
+
+		/**
+		 * Find the archived items of all given authors with a single query over their dc.contributor.author values,
+		 * matching each author's key against both the value and the authority key. Fills in each author's item IDs.
+		 *
+		 * @return the authors of each item, in the order they are listed, by item ID.
+		 */
+		static SortedMap<Integer, List<AuthorExport>> findItems(Context context, List<AuthorExport> authors) throws SQLException {
+			Map<String, AuthorExport> byKey = new HashMap<>();
+			for (AuthorExport author : authors) {
+				byKey.put(author.key, author);
+			}
+			int fieldId = ScriptUtils.findMetadataField(context, "dc", "contributor", "author").getFieldID();
+			Object[] parameters = new Object[2 + 2 * authors.size()];
+			parameters[0] = Constants.ITEM;
+			parameters[1] = fieldId;
+			for (int i = 0; i < authors.size(); i++) {
+				parameters[2 + i] = authors.get(i).key;
+				parameters[2 + authors.size() + i] = authors.get(i).key;
+			}
+			String inClause = " IN (" + ScriptUtils.placeholders(authors.size()) + ")";
+
+			SortedMap<Integer, List<AuthorExport>> itemAuthors = new TreeMap<>();
+			long start = System.nanoTime();
+			TableRowIterator rows = DatabaseManager.query(context, "SELECT mv.resource_id, mv.text_value, mv.authority FROM metadatavalue mv, item i"
+					+ " WHERE mv.resource_id = i.item_id AND mv.resource_type_id = ? AND mv.metadata_field_id = ? AND i.in_archive = '1'"
+					+ " AND (" + ScriptUtils.textValueColumn("mv") + inClause + " OR mv.authority" + inClause + ") ORDER BY mv.resource_id", parameters);
+			try {
+				while (rows.hasNext()) {
+					TableRow row = rows.next();
+					int itemId = row.getIntColumn("resource_id");
+					addItem(itemAuthors, itemId, byKey.get(row.getStringColumn("text_value")));
+					addItem(itemAuthors, itemId, byKey.get(row.getStringColumn("authority")));
+				}
+			} finally {
+				rows.close();
+			}
+			ScriptMetrics.get().recordPhase("db.query", System.nanoTime() - start);
+
+			// keep the authors of each item in the order of the authors file, so that the first one gets the copy
+			final Map<AuthorExport, Integer> order = new HashMap<>();
+			for (int i = 0; i < authors.size(); i++) {
+				order.put(authors.get(i), i);
+			}
+			for (List<AuthorExport> list : itemAuthors.values()) {
+				Collections.sort(list, new Comparator<AuthorExport>() {
+					@Override
+					public int compare(AuthorExport a, AuthorExport b) {
+						return order.get(a).compareTo(order.get(b));
+					}
+				});
+			}
+			return itemAuthors;
+		}
+
+		private static void addItem(SortedMap<Integer, List<AuthorExport>> itemAuthors, int itemId, AuthorExport author) {
+			if (author == null) {
+				return;
+			}
+			List<AuthorExport> list = itemAuthors.get(itemId);
+			if (list == null) {
+				list = new ArrayList<>();
+				itemAuthors.put(itemId, list);
+			}
+			if (!list.contains(author)) {
+				list.add(author);
+				author.itemIds.add(itemId);
+			}
+		}
+	}
 }
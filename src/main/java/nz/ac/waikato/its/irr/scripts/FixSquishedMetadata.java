@@ -9,34 +9,46 @@ import org.apache.commons.cli.*;
 import org.apache.commons.lang.StringUtils;
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.content.*;
-import org.dspace.core.Constants;
 import org.dspace.core.Context;
 import org.dspace.handle.HandleManager;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Script to split multi-value keywords (separated by a given delimiter string) into individual values.
  *
+ * Either a single field and delimiter are given on the command line, or a rules file lists any number of fields and
+ * delimiters. All rules are applied in a single pass: each item is loaded once and updated at most once.
+ *
  * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
  */
 public class FixSquishedMetadata {
     private static final Options OPTIONS = new Options();
 
     static {
-        Option option = new Option("f", "field", true, "The metadata field to process. Required.");
-        option.setRequired(true);
-        OPTIONS.addOption(option);
-        option = new Option("d", "delimiter", true, "Delimiter string for squished keywords. Required.");
-        option.setRequired(true);
-        OPTIONS.addOption(option);
+        OPTIONS.addOption("f", "field", true, "The metadata field to process. Required unless -r is given.");
+        OPTIONS.addOption("d", "delimiter", true, "Delimiter string for squished keywords. Required unless -r is given.");
         OPTIONS.addOption("m", "matches", true, "Number of times the delimiter must occur to count as a match. Optional. Default is 1.");
+        OPTIONS.addOption("r", "rules", true, "File with one rule per line instead of -f, -d and -m: field, delimiter and optionally number of matches, separated by tabs. Rules for the same field are applied in the order listed. Optional.");
         OPTIONS.addOption("n", "dry-run", false, "If given, do not actually make any changes; instead, print out what would have been changed without this flag. Optional.");
         OPTIONS.addOption("i", "identifier", true, "Handle of DSpace object to process. If omitted, all items will be processed. Optional.");
+        OPTIONS.addOption(new Option(null, "normalise", true, "Comma-separated list of normalisation steps to apply to each individual value, out of " + StringUtils.join(ValueNormaliser.STEPS, ", ") + ". Optional. Default is " + ValueNormaliser.DEFAULT_STEPS + "."));
+        OPTIONS.addOption(new Option(null, "check-all", false, "Load every item that has a value in the field and look for the delimiter there, instead of letting the database find the values that contain it. Optional."));
         OPTIONS.addOption("h", "help", false, "Print help for this command and exit without taking any action.");
+        ItemProcessingEngine.addOptions(OPTIONS);
+        ChangePlan.addOptions(OPTIONS);
     }
 
     public static void main(String[] args) {
@@ -52,6 +64,78 @@ public class FixSquishedMetadata {
             ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 0, OPTIONS);
         }
 
+        if (line.hasOption("apply-plan")) {
+            ChangePlan.applyFromCommandLine(FixSquishedMetadata.class.getSimpleName(), line, OPTIONS);
+            return;
+        }
+
+        List<Rule> rules = null;
+        if (line.hasOption("r")) {
+            if (line.hasOption("f") || line.hasOption("d") || line.hasOption("m")) {
+                System.err.println("Give either a rules file or -f, -d and -m, not both");
+                ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+            }
+            File rulesFile = new File(line.getOptionValue("r"));
+            try {
+                rules = Rule.readAll(rulesFile);
+            } catch (IOException e) {
+                System.err.println("Could not read rules file " + rulesFile.getPath() + ": " + e.getMessage());
+                System.exit(1);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+            }
+        } else {
+            if (!line.hasOption("f") || !line.hasOption("d")) {
+                System.err.println("Both -f and -d are required unless a rules file is given");
+                ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+            }
+            int minMatches = 1;
+            if (line.hasOption("m")) {
+                try {
+                    minMatches = Integer.valueOf(line.getOptionValue("m"));
+                } catch (NumberFormatException e) {
+                    System.err.println("Could not parse min matches value (" + line.getOptionValue("m") + ") as a number :" + e.getMessage());
+                    ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+                }
+            }
+            try {
+                rules = Collections.singletonList(new Rule(line.getOptionValue("f"), line.getOptionValue("d"), minMatches));
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+            }
+        }
+        if (rules.isEmpty()) {
+            System.err.println("No rules given, nothing to do");
+            System.exit(0);
+        }
+        final Map<String, List<Rule>> rulesByField = Rule.groupByField(rules);
+        final boolean dryRun = line.hasOption("n");
+        ChangePlan.PlanWriter plan = null;
+        if (line.hasOption("plan")) {
+            if (!dryRun) {
+                System.err.println("--plan can only be used together with -n");
+                ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+            }
+            try {
+                plan = ChangePlan.create(new File(line.getOptionValue("plan")), FixSquishedMetadata.class.getSimpleName());
+            } catch (IOException e) {
+                System.err.println("Could not create change plan " + line.getOptionValue("plan") + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        final ChangePlan.PlanWriter finalPlan = plan;
+
+        ValueNormaliser normaliser = null;
+        try {
+            normaliser = ValueNormaliser.compile(line.getOptionValue("normalise", ValueNormaliser.DEFAULT_STEPS));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+        }
+        final ValueNormaliser finalNormaliser = normaliser;
+
         Context context = null;
         try {
             context = new Context();
@@ -67,98 +151,190 @@ public class FixSquishedMetadata {
                 }
             }
 
-            String delimiter = line.getOptionValue("d");
-            int minMatches = 1;
-            if (line.hasOption("m")) {
-                try {
-                    minMatches = Integer.valueOf(line.getOptionValue("m"));
-                } catch (NumberFormatException e) {
-                    System.err.println("Could not parse min matches value (" + line.getOptionValue("m") + ") as a number :" + e.getMessage());
-                    ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+            ItemProcessingEngine engine = new ItemProcessingEngine(FixSquishedMetadata.class.getSimpleName(), new ItemTask() {
+                @Override
+                public boolean process(Context context, Item item) throws SQLException, AuthorizeException, IOException {
+                    return FixSquishedMetadata.process(item, rulesByField, finalNormaliser, dryRun, finalPlan);
                 }
-            }
-            boolean dryRun = line.hasOption("n");
-
-            String schema, element, qualifier;
-            String[] fieldComponents = line.getOptionValue("f", "").split("\\.");
-            if (fieldComponents.length < 2) {
-                System.err.println("Unsupported metadata field name: " + line.getOptionValue("f"));
+            });
+            try {
+                engine.configure(line);
+            } catch (ParseException e) {
+                System.err.println("Could not parse command line options: " + e.getMessage());
                 ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
             }
-            schema = fieldComponents[0];
-            element = fieldComponents[1];
-            qualifier = fieldComponents.length > 2 ? fieldComponents[2] : null;
-
-            boolean changes = false;
-            if (dso == null || dso.getType() == Constants.SITE) {
-                changes = process(Item.findByMetadataField(context, schema, element, qualifier, Item.ANY), schema, element, qualifier, delimiter, minMatches, dryRun);
-            } else if (dso.getType() == Constants.COMMUNITY) {
-                Collection[] collections = ((Community) dso).getAllCollections();
-                for (Collection collection : collections) {
-                    changes |= process(collection.getAllItems(), schema, element, qualifier, delimiter, minMatches, dryRun);
+
+            ItemIdSource source = null;
+            try {
+                ItemScope scope = ItemScope.resolve(context, dso);
+                List<ItemIdSource> sources = new ArrayList<>();
+                if (line.hasOption("check-all")) {
+                    for (List<Rule> fieldRules : rulesByField.values()) {
+                        Rule rule = fieldRules.get(0);
+                        sources.add(ItemIdSource.archivedItemsWithField(context, rule.schema, rule.element, rule.qualifier));
+                    }
+                    source = scope.toSource(ItemIdSource.union(sources));
+                } else {
+                    // a handle scope covers all of its items, archived or not, as Collection.getAllItems did
+                    for (Rule rule : rules) {
+                        sources.add(scope.isWholeRepository()
+                                ? ItemIdSource.archivedItemsWithDelimiter(context, rule.schema, rule.element, rule.qualifier, rule.delimiter, rule.minMatches)
+                                : ItemIdSource.allItemsWithDelimiter(context, rule.schema, rule.element, rule.qualifier, rule.delimiter, rule.minMatches));
+                    }
+                    source = scope.restrict(ItemIdSource.union(sources));
                 }
-            } else if (dso.getType() == Constants.COLLECTION) {
-                changes = process(((Collection) dso).getAllItems(), schema, element, qualifier, delimiter, minMatches, dryRun);
-            } else if (dso.getType() == Constants.ITEM) {
-                changes = process((Item) dso, schema, element, qualifier, delimiter, minMatches, dryRun);
-            } else {
-                System.err.println("Unsupported type of DSpace object: " + dso.getTypeText() + ", need site, community, collection or item handle");
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
                 ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
             }
-            if (changes) {
-                context.complete();
-            }
-        } catch (SQLException | AuthorizeException | IOException e) {
+            context.abort();
+
+            engine.run(source);
+        } catch (SQLException e) {
             e.printStackTrace(System.err);
         } finally {
             if (context != null && context.isValid()) {
                 context.abort();
             }
+            if (plan != null) {
+                try {
+                    plan.close();
+                } catch (IOException e) {
+                    System.err.println("Could not write change plan " + line.getOptionValue("plan") + ": " + e.getMessage());
+                }
+            }
         }
     }
 
-    private static boolean process(ItemIterator items, String schema, String element, String qualifier, String delimiter, int minMatches, boolean dryRun) throws SQLException, AuthorizeException {
+    /**
+     * Apply all rules to the item. Rules for the same field are applied one after the other, so that values split by
+     * one rule can be split further by the next. Each field is rewritten at most once and the item is updated at most
+     * once. On a dry run, the new values of each field that would change are added to the plan, if there is one.
+     */
+    private static boolean process(Item item, Map<String, List<Rule>> rulesByField, ValueNormaliser normaliser, boolean dryRun, ChangePlan.PlanWriter plan) throws SQLException, AuthorizeException, IOException {
         boolean changes = false;
-        while (items.hasNext()) {
-            changes |= process(items.next(), schema, element, qualifier, delimiter, minMatches, dryRun);
+        for (List<Rule> fieldRules : rulesByField.values()) {
+            Rule first = fieldRules.get(0);
+            Metadatum[] oldMetadata = item.getMetadata(first.schema, first.element, first.qualifier, Item.ANY);
+            List<Metadatum> metadata = new ArrayList<>(Arrays.asList(oldMetadata));
+            boolean fieldChanged = false;
+            for (Rule rule : fieldRules) {
+                List<Metadatum> newMetadata = new ArrayList<>(metadata.size());
+                for (Metadatum md : metadata) {
+                    String[] individualValues = MetadataValueTransforms.splitSquished(md.value, rule.delimiter, rule.minMatches, normaliser);
+                    if (individualValues != null) {
+                        if (!ReportWriter.get().record(item.getID(), rule.field, md.value, StringUtils.join(individualValues, '|'), "split")) {
+                            System.out.println("item id=" + item.getID() + ": split |" + md.value + "| into |" + StringUtils.join(individualValues, '|') + "|");
+                        }
+                        for (String individualValue : individualValues) {
+                            if (StringUtils.isNotBlank(individualValue)) {
+                                Metadatum newMd = new Metadatum();
+                                newMd.language = md.language;
+                                newMd.value = individualValue;
+                                newMetadata.add(newMd);
+                            }
+                        }
+                        fieldChanged = true;
+                        if (!dryRun) {
+                            ScriptMetrics.get().valuesChanged(1);
+                        }
+                    } else {
+                        newMetadata.add(md);
+                    }
+                }
+                metadata = newMetadata;
+            }
+            if (dryRun && fieldChanged && plan != null) {
+                plan.record(item.getID(), first.field, oldMetadata, metadata);
+            }
+            if (!dryRun && fieldChanged) {
+                item.clearMetadata(first.schema, first.element, first.qualifier, Item.ANY);
+                for (Metadatum newMd : metadata) {
+                    item.addMetadata(first.schema, first.element, first.qualifier, newMd.language, newMd.value, newMd.authority, newMd.confidence);
+                }
+                changes = true;
+            }
+        }
+        if (changes) {
+            item.updateMetadata();
         }
         return changes;
     }
 
-    private static boolean process(Item item, String schema, String element, String qualifier, String delimiter, int minMatches, boolean dryRun) throws SQLException, AuthorizeException {
-        boolean changes = false;
-        List<Metadatum> newMetadata = new ArrayList<>();
-
-        Metadatum[] allMd = item.getMetadata(schema, element, qualifier, Item.ANY);
-        for (Metadatum md : allMd) {
-            if (StringUtils.isNotBlank(md.value) && StringUtils.countMatches(md.value, delimiter) >= minMatches) {
-                String[] individualValues = StringUtils.splitByWholeSeparator(md.value, delimiter);
-                for (int i = 0; i < individualValues.length; i++) {
-                    individualValues[i] = individualValues[i].replaceAll("(\\r|\\n|\\t)", " ").replaceAll("  ", " ").trim();
-                }
-                System.out.println("item id=" + item.getID() + ": split |" + md.value + "| into |" + StringUtils.join(individualValues, '|') + "|");
-                if (!dryRun) {
-                    for (String individualValue : individualValues) {
-                        if (StringUtils.isNotBlank(individualValue)) {
-                            Metadatum newMd = new Metadatum();
-                            newMd.language = md.language;
-                            newMd.value = individualValue;
-                            newMetadata.add(newMd);
+    /**
+     * One field to split, with its delimiter and the number of times the delimiter must occur.
+     */
+    static final class Rule {
+        final String field;
+        final String schema;
+        final String element;
+        final String qualifier;
+        final String delimiter;
+        final int minMatches;
+
+        Rule(String field, String delimiter, int minMatches) {
+            String[] fieldComponents = StringUtils.defaultString(field).split("\\.");
+            if (fieldComponents.length < 2) {
+                throw new IllegalArgumentException("Unsupported metadata field name: " + field);
+            }
+            if (StringUtils.isEmpty(delimiter)) {
+                throw new IllegalArgumentException("Empty delimiter for field " + field);
+            }
+            this.field = field;
+            this.schema = fieldComponents[0];
+            this.element = fieldComponents[1];
+            this.qualifier = fieldComponents.length > 2 ? fieldComponents[2] : null;
+            this.delimiter = delimiter;
+            this.minMatches = minMatches;
+        }
+
+        /**
+         * Read rules from a file with one rule per line: field, delimiter and optionally the number of matches,
+         * separated by tabs. The delimiter is used exactly as given, including any spaces. Blank lines and lines
+         * starting with # are ignored.
+         */
+        static List<Rule> readAll(File file) throws IOException {
+            List<Rule> rules = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (StringUtils.isBlank(line) || line.trim().startsWith("#")) {
+                        continue;
+                    }
+                    String[] columns = line.split("\t", -1);
+                    if (columns.length < 2 || columns.length > 3) {
+                        throw new IllegalArgumentException("Line " + lineNumber + " of rules file " + file.getPath() + " needs field, delimiter and optionally number of matches, separated by tabs");
+                    }
+                    int minMatches = 1;
+                    if (columns.length == 3 && StringUtils.isNotBlank(columns[2])) {
+                        try {
+                            minMatches = Integer.parseInt(columns[2].trim());
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Could not parse number of matches (" + columns[2] + ") on line " + lineNumber + " of rules file " + file.getPath() + " as a number");
                         }
                     }
-                    changes = true;
+                    rules.add(new Rule(columns[0].trim(), columns[1], minMatches));
                 }
-            } else {
-                newMetadata.add(md);
             }
+            return rules;
         }
-        if (!dryRun && changes) {
-            item.clearMetadata(schema, element, qualifier, Item.ANY);
-            for (Metadatum newMd : newMetadata) {
-                item.addMetadata(schema, element, qualifier, newMd.language, newMd.value, newMd.authority, newMd.confidence);
+
+        /**
+         * @return the rules grouped by field, in the order in which each field first occurs.
+         */
+        static Map<String, List<Rule>> groupByField(List<Rule> rules) {
+            Map<String, List<Rule>> rulesByField = new LinkedHashMap<>();
+            for (Rule rule : rules) {
+                List<Rule> fieldRules = rulesByField.get(rule.field);
+                if (fieldRules == null) {
+                    fieldRules = new ArrayList<>();
+                    rulesByField.put(rule.field, fieldRules);
+                }
+                fieldRules.add(rule);
             }
-            item.updateMetadata();
+            return rulesByField;
         }
-        return changes;
     }
 }
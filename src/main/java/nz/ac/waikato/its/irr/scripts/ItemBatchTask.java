@@ -0,0 +1,26 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.dspace.core.Context;
+
+import java.sql.SQLException;
+
+/**
+ * Unit of work applied to a batch of item IDs at once by {@link ItemProcessingEngine}, for tasks that change items
+ * with set-based SQL rather than through the Item API.
+ *
+ * Implementations are shared between all worker threads, so they must not keep per-batch state in fields. The context
+ * passed in belongs to the calling worker; implementations must not commit, complete or abort it themselves. If the
+ * task throws an exception, all changes for the batch are rolled back.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public interface ItemBatchTask {
+	/**
+	 * Process the items with the given IDs.
+	 *
+	 * @param context the worker's context, with the authorisation system turned off.
+	 * @param itemIds the IDs of the items to process, in ascending order.
+	 * @return the number of these items that were changed.
+	 */
+	int process(Context context, int[] itemIds) throws SQLException;
+}
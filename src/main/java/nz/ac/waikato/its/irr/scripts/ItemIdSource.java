@@ -0,0 +1,205 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Supplies the item IDs that {@link ItemProcessingEngine} should work on, one ID range at a time.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public abstract class ItemIdSource {
+	/**
+	 * @return the highest item ID this source could return, or -1 if there are no items at all.
+	 */
+	public abstract int getMaxId(Context context) throws SQLException;
+
+	/**
+	 * @return the IDs in this source that are &gt;= fromId and &lt; toId, in ascending order and without duplicates.
+	 */
+	public abstract int[] findIds(Context context, int fromId, int toId) throws SQLException;
+
+	/**
+	 * All archived items, ie the same items that Item.findAll returns.
+	 */
+	public static ItemIdSource archivedItems() {
+		return new QuerySource("SELECT item_id FROM item WHERE in_archive = '1' AND item_id >= ? AND item_id < ? ORDER BY item_id");
+	}
+
+	/**
+	 * All archived items that have at least one value in the given metadata field, ie the same items that
+	 * Item.findByMetadataField with value Item.ANY returns.
+	 */
+	public static ItemIdSource archivedItemsWithField(Context context, String schema, String element, String qualifier) throws SQLException {
+		int fieldId = ScriptUtils.findMetadataField(context, schema, element, qualifier).getFieldID();
+		return new QuerySource("SELECT DISTINCT mv.resource_id AS item_id FROM metadatavalue mv, item i"
+				+ " WHERE mv.resource_id = i.item_id AND mv.resource_type_id = ? AND mv.metadata_field_id = ? AND i.in_archive = '1'"
+				+ " AND mv.resource_id >= ? AND mv.resource_id < ? ORDER BY item_id", Constants.ITEM, fieldId);
+	}
+
+	/**
+	 * All archived, workflow and workspace items that have at least one value in the given metadata field, ie the items
+	 * that archivedItemsWithField returns plus those in-progress submissions that have the field. Withdrawn items and
+	 * template items are not included. Only the metadatavalue rows of the field are scanned, so this doesn't depend on
+	 * how many submissions are in progress.
+	 */
+	public static ItemIdSource archivedAndInProgressItemsWithField(Context context, String schema, String element, String qualifier) throws SQLException {
+		int fieldId = ScriptUtils.findMetadataField(context, schema, element, qualifier).getFieldID();
+		return new QuerySource("SELECT DISTINCT mv.resource_id AS item_id FROM metadatavalue mv, item i"
+				+ " WHERE mv.resource_id = i.item_id AND mv.resource_type_id = ? AND mv.metadata_field_id = ?"
+				+ " AND (i.in_archive = '1' OR EXISTS (SELECT 1 FROM workflowitem wf WHERE wf.item_id = i.item_id)"
+				+ " OR EXISTS (SELECT 1 FROM workspaceitem ws WHERE ws.item_id = i.item_id))"
+				+ " AND mv.resource_id >= ? AND mv.resource_id < ? ORDER BY item_id", Constants.ITEM, fieldId);
+	}
+
+	/**
+	 * All archived items that have at least one value in the given metadata field containing the delimiter at least
+	 * minMatches times. The delimiter is counted in the database, by comparing the length of each value with its length
+	 * after removing all occurrences of the delimiter, so only candidate items ever get loaded. Occurrences are counted
+	 * the same way as StringUtils.countMatches does, but callers should still check each value once the item is loaded.
+	 */
+	public static ItemIdSource archivedItemsWithDelimiter(Context context, String schema, String element, String qualifier, String delimiter, int minMatches) throws SQLException {
+		return itemsWithDelimiter(context, schema, element, qualifier, delimiter, minMatches, true);
+	}
+
+	/**
+	 * Like {@link #archivedItemsWithDelimiter}, but including withdrawn, in-progress and other non-archived items, eg for
+	 * a scope that should cover all items of a collection (like Collection.getAllItems).
+	 */
+	public static ItemIdSource allItemsWithDelimiter(Context context, String schema, String element, String qualifier, String delimiter, int minMatches) throws SQLException {
+		return itemsWithDelimiter(context, schema, element, qualifier, delimiter, minMatches, false);
+	}
+
+	private static ItemIdSource itemsWithDelimiter(Context context, String schema, String element, String qualifier, String delimiter, int minMatches, boolean archivedOnly) throws SQLException {
+		int fieldId = ScriptUtils.findMetadataField(context, schema, element, qualifier).getFieldID();
+		return new QuerySource("SELECT DISTINCT mv.resource_id AS item_id FROM metadatavalue mv, item i"
+				+ " WHERE mv.resource_id = i.item_id AND mv.resource_type_id = ? AND mv.metadata_field_id = ?"
+				+ (archivedOnly ? " AND i.in_archive = '1'" : "")
+				+ " AND LENGTH(mv.text_value) - LENGTH(REPLACE(mv.text_value, ?, '')) >= ?"
+				+ " AND mv.resource_id >= ? AND mv.resource_id < ? ORDER BY item_id",
+				Constants.ITEM, fieldId, delimiter, minMatches * delimiter.length());
+	}
+
+	/**
+	 * The given item IDs. The array doesn't need to be sorted and may contain duplicates.
+	 */
+	public static ItemIdSource fromIds(int[] ids) {
+		return new ArraySource(ids);
+	}
+
+	/**
+	 * The IDs that are in at least one of the given sources.
+	 */
+	public static ItemIdSource union(final List<ItemIdSource> sources) {
+		if (sources.size() == 1) {
+			return sources.get(0);
+		}
+		return new ItemIdSource() {
+			@Override
+			public int getMaxId(Context context) throws SQLException {
+				int maxId = -1;
+				for (ItemIdSource source : sources) {
+					maxId = Math.max(maxId, source.getMaxId(context));
+				}
+				return maxId;
+			}
+
+			@Override
+			public int[] findIds(Context context, int fromId, int toId) throws SQLException {
+				int[] ids = new int[0];
+				for (ItemIdSource source : sources) {
+					int[] sourceIds = source.findIds(context, fromId, toId);
+					int size = ids.length;
+					ids = Arrays.copyOf(ids, size + sourceIds.length);
+					System.arraycopy(sourceIds, 0, ids, size, sourceIds.length);
+				}
+				return sortedUnique(ids);
+			}
+		};
+	}
+
+	static int[] sortedUnique(int[] ids) {
+		int[] sorted = Arrays.copyOf(ids, ids.length);
+		Arrays.sort(sorted);
+		int size = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (size == 0 || sorted[size - 1] != sorted[i]) {
+				sorted[size++] = sorted[i];
+			}
+		}
+		return Arrays.copyOf(sorted, size);
+	}
+
+	static int[] collectIds(TableRowIterator rows, String column) throws SQLException {
+		int[] ids = new int[64];
+		int size = 0;
+		try {
+			while (rows.hasNext()) {
+				if (size == ids.length) {
+					ids = Arrays.copyOf(ids, size * 2);
+				}
+				ids[size++] = rows.next().getIntColumn(column);
+			}
+		} finally {
+			rows.close();
+		}
+		return Arrays.copyOf(ids, size);
+	}
+
+	/**
+	 * Source backed by a query that takes the range bounds as its last two parameters and returns a column item_id.
+	 */
+	static class QuerySource extends ItemIdSource {
+		private final String query;
+		private final Object[] parameters;
+
+		QuerySource(String query, Object... parameters) {
+			this.query = query;
+			this.parameters = parameters;
+		}
+
+		@Override
+		public int getMaxId(Context context) throws SQLException {
+			TableRow row = DatabaseManager.querySingle(context, "SELECT MAX(item_id) AS max_id FROM item");
+			return row == null ? -1 : row.getIntColumn("max_id");
+		}
+
+		@Override
+		public int[] findIds(Context context, int fromId, int toId) throws SQLException {
+			Object[] allParameters = Arrays.copyOf(parameters, parameters.length + 2);
+			allParameters[parameters.length] = fromId;
+			allParameters[parameters.length + 1] = toId;
+			return collectIds(DatabaseManager.query(context, query, allParameters), "item_id");
+		}
+	}
+
+	static class ArraySource extends ItemIdSource {
+		private final int[] ids;
+
+		ArraySource(int[] ids) {
+			this.ids = sortedUnique(ids);
+		}
+
+		@Override
+		public int getMaxId(Context context) {
+			return ids.length == 0 ? -1 : ids[ids.length - 1];
+		}
+
+		@Override
+		public int[] findIds(Context context, int fromId, int toId) {
+			return Arrays.copyOfRange(ids, insertionPoint(fromId), insertionPoint(toId));
+		}
+
+		private int insertionPoint(int id) {
+			int index = Arrays.binarySearch(ids, id);
+			return index >= 0 ? index : -index - 1;
+		}
+	}
+}
@@ -0,0 +1,415 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.lang.StringUtils;
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Item;
+import org.dspace.core.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs an {@link ItemTask} over all items supplied by an {@link ItemIdSource}, or an {@link ItemBatchTask} over
+ * batches of their IDs.
+ *
+ * The item ID space is split into fixed-size ranges, which are handed out in ascending order to a pool of worker
+ * threads. Each worker has its own context and commits its changes in batches via {@link BatchCommitter}, so that a
+ * failing item is rolled back on its own. Items are decached once the worker is done with them. Once all ranges have
+ * been processed, the per-worker counts are merged into a single summary.
+ *
+ * If a checkpoint file is configured, each worker records the last committed item ID of its current range in a
+ * {@link CheckpointJournal} after every commit, and a resumed run skips everything up to that point. If a
+ * {@link Shard} is configured, only the ranges belonging to that shard are processed, and if a {@link Throttle} is
+ * configured, all workers wait for it before each item.
+ *
+ * A batch task gets the IDs of each range in chunks of the batch size, without any items being loaded, and each chunk is
+ * committed (or rolled back) as a whole.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class ItemProcessingEngine {
+	public static final int RANGE_SIZE = 1000;
+
+	private static final List<String> ENGINE_OPTIONS = Arrays.asList("threads", "batch-size", "checkpoint", "resume", "metrics", "metrics-interval", "max-items-per-sec", "max-commit-latency", "report", "report-format");
+
+	private final String name;
+	private final ItemTask task;
+	private final ItemBatchTask batchTask;
+	private int threads = 1;
+	private int batchSize = BatchCommitter.DEFAULT_BATCH_SIZE;
+	private File checkpointFile;
+	private boolean resume;
+	private String scope;
+	private Shard shard = Shard.ALL;
+	private Throttle throttle;
+
+	public ItemProcessingEngine(String name, ItemTask task) {
+		this.name = name;
+		this.task = task;
+		this.batchTask = null;
+	}
+
+	public ItemProcessingEngine(String name, ItemBatchTask batchTask) {
+		this.name = name;
+		this.task = null;
+		this.batchTask = batchTask;
+	}
+
+	/**
+	 * Add the command line options understood by {@link #configure(CommandLine)}. These only have long names so that
+	 * they don't clash with the scripts' own options.
+	 */
+	public static void addOptions(Options options) {
+		options.addOption(new Option(null, "threads", true, "Number of worker threads to use. Optional. Default is 1."));
+		BatchCommitter.addOption(options);
+		options.addOption(new Option(null, "checkpoint", true, "File in which to record progress after each commit, so that an interrupted run can be resumed. Optional."));
+		options.addOption(new Option(null, "shard", true, "Only process the k-th of n disjoint subsets of items, given as k/n (eg 2/4). Run n times with k from 1 to n to process all items. Optional."));
+		options.addOption(new Option(null, "resume", false, "Resume an interrupted run with the same options, skipping all items recorded as committed in the --checkpoint file. Optional."));
+		ScriptMetrics.addOptions(options);
+		Throttle.addOptions(options);
+		ReportWriter.addOptions(options);
+	}
+
+	public void configure(CommandLine line) throws ParseException {
+		if (line.hasOption("threads")) {
+			setThreads(parsePositiveInt(line, "threads"));
+		}
+		setBatchSize(BatchCommitter.parseBatchSize(line));
+		if (line.hasOption("checkpoint")) {
+			checkpointFile = new File(line.getOptionValue("checkpoint"));
+		}
+		if (line.hasOption("shard")) {
+			setShard(Shard.parse(line.getOptionValue("shard")));
+		}
+		resume = line.hasOption("resume");
+		if (resume && checkpointFile == null) {
+			throw new ParseException("--resume requires --checkpoint");
+		}
+		scope = describeScope(line);
+		throttle = Throttle.fromCommandLine(line);
+		ScriptMetrics.start(name, line);
+		ReportWriter.start(name, line);
+	}
+
+	/**
+	 * Describe what a run with the given command line works on: the script name plus all options and arguments other
+	 * than the ones that only affect how the engine runs.
+	 */
+	private String describeScope(CommandLine line) {
+		List<String> parts = new ArrayList<>();
+		for (Option option : line.getOptions()) {
+			String key = option.getLongOpt() != null ? option.getLongOpt() : option.getOpt();
+			if (ENGINE_OPTIONS.contains(key)) {
+				continue;
+			}
+			parts.add(key + (option.hasArg() ? "=" + StringUtils.join(option.getValues(), ",") : ""));
+		}
+		Collections.sort(parts);
+		parts.addAll(Arrays.asList(line.getArgs()));
+		return name + " " + StringUtils.join(parts, " ");
+	}
+
+	static int parsePositiveInt(CommandLine line, String option) throws ParseException {
+		String value = line.getOptionValue(option);
+		try {
+			int result = Integer.parseInt(value);
+			if (result > 0) {
+				return result;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		throw new ParseException("Value for --" + option + " must be a positive number, got " + value);
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void setShard(Shard shard) {
+		this.shard = shard;
+	}
+
+	public Shard getShard() {
+		return shard;
+	}
+
+	/**
+	 * @return the checkpoint file configured for this engine, or null if there is none.
+	 */
+	public File getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	public boolean isResuming() {
+		return resume;
+	}
+
+	public void setThrottle(Throttle throttle) {
+		this.throttle = throttle;
+	}
+
+	/**
+	 * Process all items from the given source and print a summary.
+	 *
+	 * @return the merged summary of all workers.
+	 */
+	public Summary run(ItemIdSource source) throws SQLException {
+		long start = System.currentTimeMillis();
+		int maxId;
+		Context context = new Context();
+		try {
+			maxId = source.getMaxId(context);
+		} finally {
+			context.abort();
+		}
+
+		CheckpointJournal journal = null;
+		if (checkpointFile != null) {
+			journal = new CheckpointJournal(checkpointFile, scope != null ? scope : name);
+			try {
+				journal.open(resume);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not open checkpoint file " + checkpointFile.getPath(), e);
+			}
+			if (resume) {
+				System.out.println(name + ": resuming from checkpoint file " + checkpointFile.getPath());
+			}
+		}
+
+		Summary total = new Summary();
+		try {
+			if (maxId >= 0) {
+				RangeQueue ranges = new RangeQueue(maxId / RANGE_SIZE + 1);
+				ExecutorService executor = Executors.newFixedThreadPool(threads);
+				try {
+					List<Future<Summary>> results = new ArrayList<>();
+					for (int i = 0; i < threads; i++) {
+						results.add(executor.submit(new Worker(source, ranges, journal)));
+					}
+					for (Future<Summary> result : results) {
+						try {
+							total.add(result.get());
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new RuntimeException("Interrupted while waiting for workers to finish", e);
+						} catch (ExecutionException e) {
+							throw new RuntimeException("Worker failed unexpectedly", e.getCause());
+						}
+					}
+				} finally {
+					executor.shutdownNow();
+				}
+			}
+		} finally {
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (IOException e) {
+					System.err.println(name + ": could not close checkpoint file " + checkpointFile.getPath() + ": " + e.getMessage());
+				}
+			}
+		}
+
+		System.out.println(String.format("%s: processed %d item(s), changed %d, failed %d, in %.1fs using %d thread(s)%s",
+				name, total.processed, total.changed, total.failed,
+				(System.currentTimeMillis() - start) / 1000.0, threads,
+				shard == Shard.ALL ? "" : " for shard " + shard));
+		return total;
+	}
+
+	private static Context newContext() throws SQLException {
+		Context context = new Context();
+		context.turnOffAuthorisationSystem();
+		return context;
+	}
+
+	public static class Summary {
+		private long processed;
+		private long changed;
+		private long failed;
+
+		void add(Summary other) {
+			processed += other.processed;
+			changed += other.changed;
+			failed += other.failed;
+		}
+
+		public long getProcessed() {
+			return processed;
+		}
+
+		public long getChanged() {
+			return changed;
+		}
+
+		public long getFailed() {
+			return failed;
+		}
+	}
+
+	private static class RangeQueue {
+		private final AtomicInteger next = new AtomicInteger();
+		private final int count;
+
+		RangeQueue(int count) {
+			this.count = count;
+		}
+
+		/**
+		 * @return the index of the next range to process, or -1 if there are none left.
+		 */
+		int take() {
+			int range = next.getAndIncrement();
+			return range < count ? range : -1;
+		}
+	}
+
+	private class Worker implements Callable<Summary> {
+		private final ItemIdSource source;
+		private final RangeQueue ranges;
+		private final CheckpointJournal journal;
+
+		Worker(ItemIdSource source, RangeQueue ranges, CheckpointJournal journal) {
+			this.source = source;
+			this.ranges = ranges;
+			this.journal = journal;
+		}
+
+		@Override
+		public Summary call() throws SQLException, IOException, InterruptedException {
+			Summary summary = new Summary();
+			ScriptMetrics metrics = ScriptMetrics.get();
+			Context context = newContext();
+			try {
+				// a batch task's chunks are already as large as the batch size, so each one is committed on its own
+				BatchCommitter batch = new BatchCommitter(context, task != null ? batchSize : 1);
+				batch.setThrottle(throttle);
+				int range;
+				while ((range = ranges.take()) >= 0) {
+					if (!shard.containsRange(range)) {
+						continue;
+					}
+					int lastIdInRange = (range + 1) * RANGE_SIZE - 1;
+					int resumePoint = journal != null ? journal.getResumePoint(range) : -1;
+					if (resumePoint >= lastIdInRange) {
+						continue;
+					}
+					long phaseStart = System.nanoTime();
+					int[] ids = source.findIds(context, range * RANGE_SIZE, lastIdInRange + 1);
+					metrics.recordPhase("db.query", System.nanoTime() - phaseStart);
+					int first = 0;
+					while (first < ids.length && ids[first] <= resumePoint) {
+						first++;
+					}
+					if (task != null) {
+						processItems(context, batch, range, ids, first, summary);
+					} else {
+						processBatches(context, batch, range, ids, first, summary);
+					}
+					// batches don't span ranges, so that the journal only needs to track one position per range
+					if (batch.getPending() > 0) {
+						batch.commit();
+					}
+					if (journal != null) {
+						journal.record(range, lastIdInRange);
+					}
+				}
+			} finally {
+				if (context.isValid()) {
+					context.abort();
+				}
+			}
+			return summary;
+		}
+
+		private void processItems(Context context, BatchCommitter batch, int range, int[] ids, int first, Summary summary) throws SQLException, IOException, InterruptedException {
+			ScriptMetrics metrics = ScriptMetrics.get();
+			for (int i = first; i < ids.length; i++) {
+				int id = ids[i];
+				if (throttle != null && batch.getPending() == 0) {
+					// wait for the whole batch up front, so that no uncommitted changes hold locks while waiting
+					throttle.acquire(Math.min(batchSize, ids.length - i));
+				}
+				Item item = null;
+				boolean failed = false;
+				batch.begin();
+				try {
+					long phaseStart = System.nanoTime();
+					item = Item.find(context, id);
+					metrics.recordPhase("db.load", System.nanoTime() - phaseStart);
+					if (item != null) {
+						phaseStart = System.nanoTime();
+						boolean changed = task.process(context, item);
+						metrics.recordPhase("task.process", System.nanoTime() - phaseStart);
+						metrics.itemProcessed(changed);
+						summary.processed++;
+						if (changed) {
+							summary.changed++;
+						}
+					}
+				} catch (SQLException | AuthorizeException | IOException | RuntimeException e) {
+					failed = true;
+					metrics.itemFailed();
+					summary.failed++;
+					System.err.println(name + ": could not process item id=" + id + ", rolling back changes to this item. Reason: " + e.getMessage());
+					e.printStackTrace(System.err);
+				} finally {
+					if (item != null) {
+						item.decache();
+					}
+				}
+				// a failure to commit the batch isn't specific to this item, so let it end the worker
+				boolean committed = failed ? batch.failed() : batch.succeeded();
+				if (committed && journal != null) {
+					journal.record(range, id);
+				}
+			}
+		}
+
+		private void processBatches(Context context, BatchCommitter batch, int range, int[] ids, int first, Summary summary) throws SQLException, IOException, InterruptedException {
+			ScriptMetrics metrics = ScriptMetrics.get();
+			for (int from = first; from < ids.length; from += batchSize) {
+				int[] chunk = Arrays.copyOfRange(ids, from, Math.min(from + batchSize, ids.length));
+				if (throttle != null) {
+					throttle.acquire(chunk.length);
+				}
+				boolean failed = false;
+				batch.begin();
+				try {
+					long phaseStart = System.nanoTime();
+					int changed = batchTask.process(context, chunk);
+					metrics.recordPhase("task.process", System.nanoTime() - phaseStart);
+					metrics.itemsProcessed(chunk.length, changed);
+					summary.processed += chunk.length;
+					summary.changed += changed;
+				} catch (SQLException | RuntimeException e) {
+					failed = true;
+					metrics.itemsFailed(chunk.length);
+					summary.failed += chunk.length;
+					System.err.println(name + ": could not process items id=" + chunk[0] + " to id=" + chunk[chunk.length - 1] + ", rolling back changes to these items. Reason: " + e.getMessage());
+					e.printStackTrace(System.err);
+				}
+				boolean committed = failed ? batch.failed() : batch.succeeded();
+				if (committed && journal != null) {
+					journal.record(range, chunk[chunk.length - 1]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.dspace.content.DSpaceObject;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The set of items that a site, community, collection or item handle refers to.
+ *
+ * Community and collection scopes are resolved with a single query over community2community, community2collection and
+ * collection2item, so sub-communities are included and items mapped into several collections only appear once. The
+ * item IDs are held in a bit set indexed by item ID, which keeps membership checks and ordered iteration cheap even
+ * for hundreds of thousands of items.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class ItemScope {
+	private static final String COMMUNITY_ITEMS_QUERY = "%s community_tree(community_id) AS ("
+			+ " SELECT community_id FROM community WHERE community_id = ?"
+			+ " UNION ALL"
+			+ " SELECT c2c.child_comm_id FROM community2community c2c, community_tree t WHERE c2c.parent_comm_id = t.community_id)"
+			+ " SELECT DISTINCT c2i.item_id FROM community_tree t, community2collection c2c, collection2item c2i"
+			+ " WHERE c2c.community_id = t.community_id AND c2i.collection_id = c2c.collection_id";
+	private static final String COLLECTION_ITEMS_QUERY = "SELECT item_id FROM collection2item WHERE collection_id = ?";
+
+	private final BitSet ids;
+
+	private ItemScope(BitSet ids) {
+		this.ids = ids;
+	}
+
+	/**
+	 * Resolve the given object to the items it contains, including non-archived ones (like Collection.getAllItems).
+	 *
+	 * @param dso a site, community, collection or item; null is treated like the site.
+	 * @throws IllegalArgumentException if the object is of any other type.
+	 */
+	public static ItemScope resolve(Context context, DSpaceObject dso) throws SQLException {
+		if (dso == null || dso.getType() == Constants.SITE) {
+			return new ItemScope(null);
+		}
+		BitSet ids = new BitSet();
+		switch (dso.getType()) {
+			case Constants.COMMUNITY:
+				// Oracle supports recursive subquery factoring, but not the RECURSIVE keyword
+				String query = String.format(COMMUNITY_ITEMS_QUERY, DatabaseManager.isOracle() ? "WITH" : "WITH RECURSIVE");
+				addIds(ids, DatabaseManager.query(context, query, dso.getID()));
+				break;
+			case Constants.COLLECTION:
+				addIds(ids, DatabaseManager.query(context, COLLECTION_ITEMS_QUERY, dso.getID()));
+				break;
+			case Constants.ITEM:
+				ids.set(dso.getID());
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported type of DSpace object: " + dso.getTypeText() + ", need site, community, collection or item handle");
+		}
+		return new ItemScope(ids);
+	}
+
+	private static void addIds(BitSet ids, TableRowIterator rows) throws SQLException {
+		try {
+			while (rows.hasNext()) {
+				ids.set(rows.next().getIntColumn("item_id"));
+			}
+		} finally {
+			rows.close();
+		}
+	}
+
+	/**
+	 * @return true if this scope covers the whole repository.
+	 */
+	public boolean isWholeRepository() {
+		return ids == null;
+	}
+
+	public boolean contains(int itemId) {
+		return ids == null || (itemId >= 0 && ids.get(itemId));
+	}
+
+	/**
+	 * @return the number of items in this scope, or -1 for the whole repository.
+	 */
+	public int size() {
+		return ids == null ? -1 : ids.cardinality();
+	}
+
+	/**
+	 * Turn this scope into a source of item IDs.
+	 *
+	 * @param wholeRepository the source to use if this scope covers the whole repository, so that each script can
+	 *                        decide which items it needs to look at in that case.
+	 */
+	public ItemIdSource toSource(ItemIdSource wholeRepository) {
+		return ids == null ? wholeRepository : new BitSetSource(ids);
+	}
+
+	/**
+	 * @return a source with those IDs of the given source that are in this scope. Unlike
+	 * {@link #toSource(ItemIdSource)}, this still queries the given source, so any filtering it does applies; ranges
+	 * without any items in this scope are skipped without querying.
+	 */
+	public ItemIdSource restrict(final ItemIdSource source) {
+		if (ids == null) {
+			return source;
+		}
+		return new ItemIdSource() {
+			@Override
+			public int getMaxId(Context context) throws SQLException {
+				return Math.min(ids.length() - 1, source.getMaxId(context));
+			}
+
+			@Override
+			public int[] findIds(Context context, int fromId, int toId) throws SQLException {
+				int first = ids.nextSetBit(fromId);
+				if (first < 0 || first >= toId) {
+					return new int[0];
+				}
+				int[] candidates = source.findIds(context, fromId, toId);
+				int size = 0;
+				for (int id : candidates) {
+					if (ids.get(id)) {
+						candidates[size++] = id;
+					}
+				}
+				return Arrays.copyOf(candidates, size);
+			}
+		};
+	}
+
+	private static class BitSetSource extends ItemIdSource {
+		private final BitSet ids;
+
+		BitSetSource(BitSet ids) {
+			this.ids = ids;
+		}
+
+		@Override
+		public int getMaxId(Context context) {
+			return ids.length() - 1;
+		}
+
+		@Override
+		public int[] findIds(Context context, int fromId, int toId) {
+			int[] result = new int[16];
+			int size = 0;
+			for (int id = ids.nextSetBit(fromId); id >= 0 && id < toId; id = ids.nextSetBit(id + 1)) {
+				if (size == result.length) {
+					result = Arrays.copyOf(result, size * 2);
+				}
+				result[size++] = id;
+			}
+			return Arrays.copyOf(result, size);
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Item;
+import org.dspace.core.Context;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Unit of work applied to a single item by {@link ItemProcessingEngine}.
+ *
+ * Implementations are shared between all worker threads, so they must not keep per-item state in fields. The context
+ * passed in belongs to the calling worker; implementations must not commit, complete or abort it themselves.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public interface ItemTask {
+	/**
+	 * Process the given item.
+	 *
+	 * @param context the worker's context, with the authorisation system turned off.
+	 * @param item the item to process.
+	 * @return true if the item was changed, false otherwise.
+	 */
+	boolean process(Context context, Item item) throws SQLException, AuthorizeException, IOException;
+}
@@ -0,0 +1,95 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.dspace.content.Bitstream;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the files in which a local assetstore keeps the content of bitstreams, so that {@link BitstreamCopier} can copy
+ * them file to file instead of streaming them through Bitstream.retrieve.
+ *
+ * DSpace doesn't expose where a bitstream's content is stored, so this mirrors the private layout of
+ * org.dspace.storage.bitstore.BitstreamStorageManager in DSpace 5.x (checked against 5.1, which this project builds
+ * against): store number 0 is in assetstore.dir and store number N in assetstore.dir.N; each file is named after the
+ * bitstream's internal_id and sits three directories deep, the directories being named after the first, second and
+ * third pair of digits of the internal ID; internal IDs starting with -R are registered bitstreams, whose content is
+ * outside the assetstore. DSpace 6 replaced this class with pluggable bitstore services, so review this class before
+ * using it with any other version.
+ *
+ * Whenever the layout doesn't match, ie the store isn't configured, the file doesn't exist or its size differs from the
+ * bitstream's recorded size, no file is returned and the caller should stream the content instead.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class LocalAssetstore {
+	private static final String REGISTERED_FLAG = "-R";
+	private static final int DIRECTORY_LEVELS = 3;
+	private static final int DIGITS_PER_LEVEL = 2;
+
+	/**
+	 * Look up the internal IDs of the given bitstreams, eg all bitstreams of an item, in a single query.
+	 *
+	 * @return the internal ID of each bitstream, by bitstream ID.
+	 */
+	public static Map<Integer, String> findInternalIds(Context context, List<Bitstream> bitstreams) throws SQLException {
+		Map<Integer, String> internalIds = new HashMap<>();
+		if (bitstreams.isEmpty()) {
+			return internalIds;
+		}
+		Object[] ids = new Object[bitstreams.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = bitstreams.get(i).getID();
+		}
+		long start = System.nanoTime();
+		TableRowIterator rows = DatabaseManager.query(context, "SELECT bitstream_id, internal_id FROM bitstream WHERE bitstream_id IN ("
+				+ ScriptUtils.placeholders(ids.length) + ")", ids);
+		try {
+			while (rows.hasNext()) {
+				TableRow row = rows.next();
+				internalIds.put(row.getIntColumn("bitstream_id"), row.getStringColumn("internal_id"));
+			}
+		} finally {
+			rows.close();
+		}
+		ScriptMetrics.get().recordPhase("db.query", System.nanoTime() - start);
+		return internalIds;
+	}
+
+	/**
+	 * @return the file holding the bitstream's content, or null if it isn't in a local assetstore or the file found
+	 * there doesn't have the bitstream's size.
+	 */
+	public static File findFile(Bitstream bitstream, String internalId) {
+		if (internalId == null || internalId.length() < DIRECTORY_LEVELS * DIGITS_PER_LEVEL || internalId.startsWith(REGISTERED_FLAG)) {
+			return null;
+		}
+		int storeNumber = bitstream.getStoreNumber();
+		String assetstoreDir = ConfigurationManager.getProperty(storeNumber == 0 ? "assetstore.dir" : "assetstore.dir." + storeNumber);
+		if (assetstoreDir == null) {
+			return null;
+		}
+		File dir = new File(assetstoreDir);
+		for (int level = 0; level < DIRECTORY_LEVELS; level++) {
+			dir = new File(dir, internalId.substring(level * DIGITS_PER_LEVEL, (level + 1) * DIGITS_PER_LEVEL));
+		}
+		File file = new File(dir, internalId);
+		if (!file.isFile()) {
+			return null;
+		}
+		if (file.length() != bitstream.getSize()) {
+			System.err.println("bitstream id=" + bitstream.getID() + ": assetstore file " + file.getPath() + " has " + file.length()
+					+ " bytes but the bitstream has " + bitstream.getSize() + ", reading it via DSpace instead");
+			return null;
+		}
+		return file;
+	}
+}
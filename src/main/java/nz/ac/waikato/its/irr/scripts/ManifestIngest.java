@@ -0,0 +1,361 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.lang.StringUtils;
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Bitstream;
+import org.dspace.content.BitstreamFormat;
+import org.dspace.content.Item;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Adds many files to items in one run, for {@link AddBitstreamFromCLI}, as listed in a manifest CSV file with the
+ * columns item identifier (handle or ID), file path, bundle name and description. Bundle and description may be left
+ * empty. File paths are relative to the directory of the manifest file. Blank lines, lines starting with # and a header
+ * line starting with "identifier" are ignored.
+ *
+ * The calling thread reads the manifest and resolves the identifiers, then hands each row to one of a fixed number of
+ * upload workers. All rows for the same item go to the same worker, in manifest order, so that no two transactions
+ * change the same item. Each worker has its own context and commits its uploads in batches via
+ * {@link BatchCommitter}, rolling back a failed row on its own; it also keeps its own cache of bitstream formats by MIME
+ * type. The work queues are bounded, so the manifest is only read as fast as the files are uploaded. A worker that stops
+ * early, eg because it can't connect to the database, keeps taking its rows and reports them as failed, so that the
+ * reader never waits on a queue that nobody takes from.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class ManifestIngest {
+	public static final int DEFAULT_THREADS = 4;
+	private static final int QUEUED_PER_THREAD = 16;
+	private static final Row END = new Row(0, -1, null, null, null, null);
+
+	private final int threads;
+	private final int batchSize;
+	private final BitstreamDedup dedup;
+	private final List<BlockingQueue<Row>> queues = new ArrayList<>();
+	private final ExecutorService executor;
+	private final List<Future<int[]>> results = new ArrayList<>();
+	private final Map<String, Integer> itemIds = new HashMap<>();
+	private int rows;
+	private int unresolved;
+
+	/**
+	 * @param dedup how to find and handle files whose content is already in the repository, or null to add all files.
+	 */
+	public ManifestIngest(int threads, int batchSize, BitstreamDedup dedup) {
+		this.threads = threads;
+		this.batchSize = batchSize;
+		this.dedup = dedup;
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Read the manifest and upload all files listed in it, then wait for all uploads to be committed and print a summary.
+	 *
+	 * @throws IllegalArgumentException if a line of the manifest can't be parsed; rows before it are still uploaded.
+	 */
+	public void run(File manifest) throws SQLException, IOException {
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < threads; i++) {
+			BlockingQueue<Row> queue = new ArrayBlockingQueue<>(QUEUED_PER_THREAD);
+			queues.add(queue);
+			results.add(executor.submit(new Worker(queue)));
+		}
+		int uploaded = 0;
+		int failed = 0;
+		int duplicates = 0;
+		Context context = new Context(Context.READ_ONLY);
+		try {
+			read(context, manifest);
+		} finally {
+			context.abort();
+			for (BlockingQueue<Row> queue : queues) {
+				put(queue, END);
+			}
+			executor.shutdown();
+			for (Future<int[]> result : results) {
+				try {
+					int[] counts = result.get();
+					uploaded += counts[0];
+					failed += counts[1];
+					duplicates += counts[2];
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while waiting for uploads to finish", e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Upload worker failed unexpectedly", e.getCause());
+				}
+			}
+		}
+		System.out.println(String.format("Read %d manifest row(s): added %d file(s)%s, %d failed, %d with unknown item, in %.1fs using %d thread(s)",
+				rows, uploaded, dedup != null ? String.format(" (%d of them already stored, so skipped or linked)", duplicates) : "",
+				failed, unresolved, (System.currentTimeMillis() - start) / 1000.0, threads));
+	}
+
+	private void read(Context context, File manifest) throws SQLException, IOException {
+		File baseDir = manifest.getAbsoluteFile().getParentFile();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (StringUtils.isBlank(line) || line.trim().startsWith("#")) {
+					continue;
+				}
+				List<String> columns = parseCsvLine(line);
+				if (lineNumber == 1 && "identifier".equalsIgnoreCase(columns.get(0).trim())) {
+					continue;
+				}
+				if (columns.size() < 2 || columns.size() > 4 || StringUtils.isBlank(columns.get(0)) || StringUtils.isBlank(columns.get(1))) {
+					throw new IllegalArgumentException("Line " + lineNumber + " of manifest " + manifest.getPath() + " needs item identifier, file and optionally bundle and description, separated by commas");
+				}
+				rows++;
+				String identifier = columns.get(0).trim();
+				int itemId = resolve(context, identifier);
+				if (itemId < 0) {
+					unresolved++;
+					ScriptMetrics.get().itemFailed();
+					System.err.println("Line " + lineNumber + ": could not find item with identifier " + identifier + ", skipping");
+					continue;
+				}
+				File file = new File(columns.get(1).trim());
+				if (!file.isAbsolute()) {
+					file = new File(baseDir, columns.get(1).trim());
+				}
+				String bundleName = columns.size() > 2 && StringUtils.isNotBlank(columns.get(2)) ? columns.get(2).trim() : Constants.CONTENT_BUNDLE_NAME;
+				String description = columns.size() > 3 && StringUtils.isNotBlank(columns.get(3)) ? columns.get(3) : null;
+				put(queues.get(itemId % threads), new Row(lineNumber, itemId, identifier, file, bundleName, description));
+			}
+		}
+	}
+
+	private static void put(BlockingQueue<Row> queue, Row row) {
+		try {
+			queue.put(row);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for uploads", e);
+		}
+	}
+
+	/**
+	 * @return the ID of the item with the given handle or ID, or -1 if there is no such item.
+	 */
+	private int resolve(Context context, String identifier) throws SQLException {
+		Integer itemId = itemIds.get(identifier);
+		if (itemId == null) {
+			TableRow row;
+			if (identifier.matches("^\\d+$")) {
+				row = DatabaseManager.querySingle(context, "SELECT item_id AS resource_id FROM item WHERE item_id = ?", Integer.valueOf(identifier));
+			} else {
+				row = DatabaseManager.querySingle(context, "SELECT resource_id FROM handle WHERE handle = ? AND resource_type_id = ?", identifier, Constants.ITEM);
+			}
+			itemId = row != null ? row.getIntColumn("resource_id") : -1;
+			itemIds.put(identifier, itemId);
+		}
+		return itemId;
+	}
+
+	/**
+	 * Split a CSV line into its values. Values may be quoted with double quotes, with double quotes inside them doubled;
+	 * values can't contain line breaks.
+	 */
+	static List<String> parseCsvLine(String line) {
+		List<String> values = new ArrayList<>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					value.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					value.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				values.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		values.add(value.toString());
+		return values;
+	}
+
+	private static class Row {
+		private final int lineNumber;
+		private final int itemId;
+		private final String identifier;
+		private final File file;
+		private final String bundleName;
+		private final String description;
+
+		Row(int lineNumber, int itemId, String identifier, File file, String bundleName, String description) {
+			this.lineNumber = lineNumber;
+			this.itemId = itemId;
+			this.identifier = identifier;
+			this.file = file;
+			this.bundleName = bundleName;
+			this.description = description;
+		}
+	}
+
+	/**
+	 * Uploads the rows from one queue until it gets the end marker.
+	 *
+	 * @return the number of rows uploaded (or deduplicated) and committed, the number of rows that failed, and the
+	 * number of rows that were duplicates.
+	 */
+	private class Worker implements Callable<int[]> {
+		private final BlockingQueue<Row> queue;
+		private final Map<String, BitstreamFormat> formats = new HashMap<>();
+		private int uploaded;
+		private int pending;
+		private int failed;
+		private int duplicates;
+		private boolean ended;
+
+		Worker(BlockingQueue<Row> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public int[] call() throws InterruptedException {
+			try {
+				uploadAll();
+			} catch (SQLException | RuntimeException e) {
+				System.err.println("Upload worker stopped, the last " + pending + " upload(s) are lost: " + e.getMessage());
+				e.printStackTrace(System.err);
+				failed += pending;
+				ScriptMetrics.get().itemsFailed(pending);
+				pending = 0;
+			} finally {
+				// however the worker stopped, keep taking rows so that the manifest reader doesn't block
+				Row row;
+				while (!ended && (row = take()) != END) {
+					rowFailed(row, "the upload worker stopped");
+				}
+			}
+			return new int[] {uploaded, failed, duplicates};
+		}
+
+		private Row take() throws InterruptedException {
+			Row row = queue.take();
+			ended = row == END;
+			return row;
+		}
+
+		private void uploadAll() throws SQLException, InterruptedException {
+			Context context = new Context();
+			try {
+				context.turnOffAuthorisationSystem();
+				BatchCommitter batch = new BatchCommitter(context, batchSize);
+				boolean broken = false;
+				Row row;
+				while ((row = take()) != END) {
+					if (broken) {
+						// keep taking rows so that the manifest reader doesn't block
+						rowFailed(row, "an earlier commit failed");
+						continue;
+					}
+					boolean success = upload(context, batch, row);
+					try {
+						if (success ? batch.succeeded() : batch.failed()) {
+							uploaded += pending;
+							pending = 0;
+						}
+					} catch (SQLException e) {
+						commitFailed(e);
+						broken = true;
+					}
+				}
+				if (!broken && batch.getPending() > 0) {
+					try {
+						batch.commit();
+						uploaded += pending;
+						pending = 0;
+					} catch (SQLException e) {
+						commitFailed(e);
+					}
+				}
+			} finally {
+				if (context.isValid()) {
+					context.abort();
+				}
+			}
+		}
+
+		private void commitFailed(SQLException e) {
+			System.err.println("Could not commit uploads, the last " + pending + " upload(s) are lost: " + e.getMessage());
+			e.printStackTrace(System.err);
+			failed += pending;
+			ScriptMetrics.get().itemsFailed(pending);
+			pending = 0;
+		}
+
+		/**
+		 * @return whether the row was uploaded; if not, its changes need to be rolled back.
+		 */
+		private boolean upload(Context context, BatchCommitter batch, Row row) throws SQLException {
+			Item item = null;
+			try {
+				batch.begin();
+				long phaseStart = System.nanoTime();
+				item = Item.find(context, row.itemId);
+				ScriptMetrics.get().recordPhase("db.load", System.nanoTime() - phaseStart);
+				if (item == null) {
+					rowFailed(row, "item id=" + row.itemId + " no longer exists");
+					return false;
+				}
+				if (!row.file.isFile() || !row.file.canRead()) {
+					rowFailed(row, "file " + row.file.getPath() + " doesn't exist or isn't readable");
+					return false;
+				}
+				Bitstream duplicate = dedup != null ? dedup.findDuplicate(context, item, row.bundleName, row.file) : null;
+				if (duplicate != null) {
+					System.out.println("Line " + row.lineNumber + ": item id=" + item.getID() + ": file " + row.file.getName() + " "
+							+ dedup.handleDuplicate(item, row.bundleName, duplicate, row.file.getName(), row.description));
+					pending++;
+					duplicates++;
+					ScriptMetrics.get().itemProcessed(false);
+					return true;
+				}
+				Bitstream bitstream = AddBitstreamFromCLI.addBitstream(context, item, row.file, row.bundleName, row.description, formats);
+				System.out.println("Line " + row.lineNumber + ": item id=" + item.getID() + ": uploaded file " + row.file.getName()
+						+ " to bundle " + row.bundleName + " as bitstream id=" + bitstream.getID() + ", checksum "
+						+ bitstream.getChecksumAlgorithm() + " " + bitstream.getChecksum());
+				pending++;
+				ScriptMetrics.get().itemProcessed(true);
+				return true;
+			} catch (SQLException | AuthorizeException | IOException | RuntimeException e) {
+				rowFailed(row, e.getMessage());
+				e.printStackTrace(System.err);
+				return false;
+			} finally {
+				if (item != null) {
+					item.decache();
+				}
+			}
+		}
+
+		private void rowFailed(Row row, String reason) {
+			failed++;
+			ScriptMetrics.get().itemFailed();
+			System.err.println("Line " + row.lineNumber + ": could not add file " + row.file.getPath() + " to item " + row.identifier + ": " + reason);
+		}
+	}
+}
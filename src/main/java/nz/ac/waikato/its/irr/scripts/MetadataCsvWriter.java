@@ -0,0 +1,190 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.lang.StringUtils;
+import org.dspace.content.Collection;
+import org.dspace.content.Item;
+import org.dspace.content.Metadatum;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Writes item metadata to a CSV file one item at a time, in the same format as DSpace's metadata export so that the
+ * file can be edited and imported again with metadata-import.
+ *
+ * DSpaceCSV needs all items in memory before it knows its columns. Here the columns are instead looked up beforehand
+ * with {@link #findColumns}, which only reads the distinct fields and languages in use from the database, so each row
+ * can be written as soon as its item has been loaded and memory use doesn't grow with the number of items.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class MetadataCsvWriter implements Closeable {
+	private static final int IDS_PER_QUERY = 1000;
+
+	private final Writer writer;
+	private final Map<String, Integer> columnIndexes = new HashMap<>();
+	private final Set<String> unexpectedColumns = new HashSet<>();
+	private final String fieldSeparator;
+	private final String valueSeparator;
+	private final String authoritySeparator;
+	private int rows;
+
+	/**
+	 * Create the file and write its header line.
+	 *
+	 * @param columns the metadata columns, eg as returned by {@link #findColumns}.
+	 */
+	public MetadataCsvWriter(File file, SortedSet<String> columns) throws IOException {
+		fieldSeparator = getFieldSeparator();
+		valueSeparator = StringUtils.defaultIfEmpty(ConfigurationManager.getProperty("bulkedit", "valueseparator"), "||").trim();
+		authoritySeparator = StringUtils.defaultIfEmpty(ConfigurationManager.getProperty("bulkedit", "authorityseparator"), "::").trim();
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+		StringBuilder header = new StringBuilder("id").append(fieldSeparator).append("collection");
+		for (String column : columns) {
+			columnIndexes.put(column, columnIndexes.size());
+			header.append(fieldSeparator).append(column);
+		}
+		writer.write(header.append('\n').toString());
+	}
+
+	private static String getFieldSeparator() {
+		String separator = ConfigurationManager.getProperty("bulkedit", "fieldseparator");
+		if (StringUtils.isBlank(separator) || "comma".equals(separator.trim())) {
+			return ",";
+		} else if ("tab".equals(separator.trim())) {
+			return "\t";
+		} else if ("semicolon".equals(separator.trim())) {
+			return ";";
+		} else if ("hash".equals(separator.trim())) {
+			return "#";
+		}
+		return separator.trim();
+	}
+
+	/**
+	 * Find the metadata columns needed for the given items: the name of each field that has values, with the language
+	 * in square brackets if the values have a non-empty one, as in DSpace's metadata export. Sorted the same way as there.
+	 */
+	public static SortedSet<String> findColumns(Context context, List<Integer> itemIds) throws SQLException {
+		SortedSet<String> columns = new TreeSet<>();
+		long start = System.nanoTime();
+		for (int from = 0; from < itemIds.size(); from += IDS_PER_QUERY) {
+			List<Integer> chunk = itemIds.subList(from, Math.min(from + IDS_PER_QUERY, itemIds.size()));
+			Object[] parameters = new Object[chunk.size() + 1];
+			parameters[0] = Constants.ITEM;
+			for (int i = 0; i < chunk.size(); i++) {
+				parameters[i + 1] = chunk.get(i);
+			}
+			TableRowIterator rows = DatabaseManager.query(context, "SELECT DISTINCT s.short_id, f.element, f.qualifier, mv.text_lang"
+					+ " FROM metadatavalue mv, metadatafieldregistry f, metadataschemaregistry s"
+					+ " WHERE mv.metadata_field_id = f.metadata_field_id AND f.metadata_schema_id = s.metadata_schema_id"
+					+ " AND mv.resource_type_id = ? AND mv.resource_id IN (" + ScriptUtils.placeholders(chunk.size()) + ")", parameters);
+			try {
+				while (rows.hasNext()) {
+					TableRow row = rows.next();
+					columns.add(toColumn(row.getStringColumn("short_id"), row.getStringColumn("element"),
+							row.getStringColumn("qualifier"), row.getStringColumn("text_lang")));
+				}
+			} finally {
+				rows.close();
+			}
+		}
+		ScriptMetrics.get().recordPhase("db.query", System.nanoTime() - start);
+		return columns;
+	}
+
+	private static String toColumn(String schema, String element, String qualifier, String language) {
+		String column = schema + "." + element;
+		if (qualifier != null) {
+			column += "." + qualifier;
+		}
+		// like DSpaceCSV, leave out an empty language as well as a missing one
+		if (StringUtils.isNotEmpty(language)) {
+			column += "[" + language + "]";
+		}
+		return column;
+	}
+
+	/**
+	 * Write the row for an item: its ID, its owning collection followed by any other collections it is mapped to, and
+	 * all of its metadata values.
+	 */
+	public void write(Item item) throws SQLException, IOException {
+		long start = System.nanoTime();
+		List<List<String>> values = new ArrayList<>(columnIndexes.size());
+		for (int i = 0; i < columnIndexes.size(); i++) {
+			values.add(null);
+		}
+		for (Metadatum metadatum : item.getMetadata(Item.ANY, Item.ANY, Item.ANY, Item.ANY)) {
+			String column = toColumn(metadatum.schema, metadatum.element, metadatum.qualifier, metadatum.language);
+			Integer index = columnIndexes.get(column);
+			if (index == null) {
+				if (unexpectedColumns.add(column)) {
+					System.err.println("item id=" + item.getID() + ": no column " + column + " in the metadata CSV, leaving its values out");
+				}
+				continue;
+			}
+			String value = metadatum.value;
+			if (StringUtils.isNotEmpty(metadatum.authority)) {
+				value += authoritySeparator + metadatum.authority + authoritySeparator + metadatum.confidence;
+			}
+			if (values.get(index) == null) {
+				values.set(index, new ArrayList<String>());
+			}
+			values.get(index).add(clean(value));
+		}
+
+		StringBuilder line = new StringBuilder().append(item.getID()).append(fieldSeparator);
+		List<String> collections = new ArrayList<>();
+		Collection owningCollection = item.getOwningCollection();
+		if (owningCollection != null) {
+			collections.add(owningCollection.getHandle());
+		}
+		for (Collection collection : item.getCollections()) {
+			if (owningCollection == null || collection.getID() != owningCollection.getID()) {
+				collections.add(collection.getHandle());
+			}
+		}
+		appendValues(line, collections);
+		for (List<String> columnValues : values) {
+			line.append(fieldSeparator);
+			appendValues(line, columnValues);
+		}
+		writer.write(line.append('\n').toString());
+		rows++;
+		ScriptMetrics.get().recordPhase("csv.write", System.nanoTime() - start);
+	}
+
+	private void appendValues(StringBuilder line, List<String> values) {
+		line.append('"');
+		if (values != null) {
+			line.append(StringUtils.join(values, valueSeparator).replace("\"", "\"\""));
+		}
+		line.append('"');
+	}
+
+	private static String clean(String value) {
+		// same as DSpaceCSV: line breaks would break the import
+		return value == null ? "" : value.replace("\r\n", "").replace("\n", "").trim();
+	}
+
+	/**
+	 * @return the number of item rows written so far.
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
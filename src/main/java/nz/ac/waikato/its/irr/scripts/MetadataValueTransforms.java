@@ -0,0 +1,54 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The string transformations applied to individual metadata values by {@link FixSquishedMetadata}. See also
+ * {@link ValueNormaliser} and {@link VocabularyMatcher}.
+ *
+ * This class deliberately doesn't depend on DSpace so that the transformations can be benchmarked without a DSpace
+ * installation (see the benchmarks module).
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public final class MetadataValueTransforms {
+	private MetadataValueTransforms() {
+	}
+
+	/**
+	 * Split a squished value into its individual values, tidying up whitespace with the default normaliser.
+	 *
+	 * @return the individual values, or null if the value doesn't contain the delimiter at least minMatches times.
+	 */
+	public static String[] splitSquished(String value, String delimiter, int minMatches) {
+		return splitSquished(value, delimiter, minMatches, ValueNormaliser.DEFAULT);
+	}
+
+	/**
+	 * Split a squished value into its individual values. Each value is normalised straight from the original string,
+	 * without creating an intermediate substring first. Empty values between adjacent delimiters are left out.
+	 *
+	 * @return the individual values, or null if the value doesn't contain the delimiter at least minMatches times.
+	 */
+	public static String[] splitSquished(String value, String delimiter, int minMatches, ValueNormaliser normaliser) {
+		if (StringUtils.isBlank(value) || StringUtils.isEmpty(delimiter) || StringUtils.countMatches(value, delimiter) < minMatches) {
+			return null;
+		}
+		List<String> individualValues = new ArrayList<>();
+		int start = 0;
+		int index;
+		while ((index = value.indexOf(delimiter, start)) >= 0) {
+			if (index > start) {
+				individualValues.add(normaliser.normalise(value, start, index));
+			}
+			start = index + delimiter.length();
+		}
+		if (start < value.length()) {
+			individualValues.add(normaliser.normalise(value, start, value.length()));
+		}
+		return individualValues.toArray(new String[individualValues.size()]);
+	}
+}
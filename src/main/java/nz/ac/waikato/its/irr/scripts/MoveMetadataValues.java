@@ -8,19 +8,32 @@ package nz.ac.waikato.its.irr.scripts;
 import org.apache.commons.cli.*;
 import org.apache.commons.lang.StringUtils;
 import org.dspace.authorize.AuthorizeException;
-import org.dspace.content.Collection;
 import org.dspace.content.*;
-import org.dspace.core.Constants;
 import org.dspace.core.Context;
 import org.dspace.handle.HandleManager;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * Script to move metadata values from one field to another, optionally restricted to the values listed in a file and
+ * optionally changing their language.
+ *
+ * Either a single source and target field are given on the command line, or a mapping file lists any number of moves.
+ * All moves are applied in a single pass: each item is loaded once and updated at most once.
+ *
  * @author Andrea Schweer schweer@waikato.ac.nz
  *         for the University of Waikato's Institutional Research Repositories
  */
@@ -28,19 +41,21 @@ public class MoveMetadataValues {
     private static final Options OPTIONS = new Options();
 
     static {
-        Option option = new Option("s", "source", true, "The source metadata field. Required.");
-        option.setRequired(true);
-        OPTIONS.addOption(option);
-        option = new Option("t", "target", true, "The target metadata field. Required.");
-        option.setRequired(true);
-        OPTIONS.addOption(option);
+        OPTIONS.addOption("s", "source", true, "The source metadata field. Required unless -m is given.");
+        OPTIONS.addOption("t", "target", true, "The target metadata field. Required unless -m is given.");
         OPTIONS.addOption("l", "language", true, "The desired language for the metadata field. Optional. If omitted, the metadata language will be unchanged.");
         OPTIONS.addOption("r", "restrict-values", true, "Name of a file that contains specific values that should be processed, one per line. Optional. If omitted, all values of the given field will have their metadata language changed.");
+        OPTIONS.addOption("m", "mapping", true, "File with one move per line instead of -s, -t, -l and -r: source field, target field and optionally a values file and a language, separated by tabs. Moves are applied in the order listed. Optional.");
         OPTIONS.addOption("n", "dry-run", false, "If given, do not actually make any changes; instead, print out what would have been changed without this flag. Optional.");
         OPTIONS.addOption("i", "identifier", true, "Handle of DSpace object to process. If omitted, all items will be processed. Optional.");
         OPTIONS.addOption("c", "case-sensitive", false, "If given and -r is present, use case sensitive matching. Optional. If omitted, case insensitive matching is used.");
         OPTIONS.addOption("p", "preferred", false, "If given and -r is present but -c isn't, use the capitalisation as given in the file specified by -r for the new metadata value. If omitted, the new metadata value will use the same capitalisation as the old one.");
+        OPTIONS.addOption(new Option(null, "match", true, "How values must match the file specified by -r: exact (the whole value is in the file), prefix (the value starts with a line from the file) or phrase (a line from the file occurs anywhere in the value as whole words). Optional. Default is exact."));
+        OPTIONS.addOption(new Option(null, "ignore-accents", false, "If given and -r is present, ignore accents and other diacritics when matching values. Optional."));
+        OPTIONS.addOption(new Option(null, "bulk", false, "Move values by updating the database directly, a batch of items at a time, instead of rewriting each item's metadata. Changed items are reindexed at the end; with --checkpoint, a resumed run also reindexes the items changed before the interruption. Optional."));
         OPTIONS.addOption("h", "help", false, "Print help for this command and exit without taking any action.");
+        ItemProcessingEngine.addOptions(OPTIONS);
+        ChangePlan.addOptions(OPTIONS);
     }
 
     public static void main(String[] args) {
@@ -57,53 +72,74 @@ public class MoveMetadataValues {
             return;
         }
 
-        boolean dryRun = line.hasOption("n");
-
-        String sourceSchema, sourceElement, sourceQualifier;
-        String[] sourceFieldComponents = line.getOptionValue("s", "").split("\\.");
-        if (sourceFieldComponents.length < 2) {
-            System.err.println("Unsupported source metadata field name: " + line.getOptionValue("s"));
-            ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
-        }
-        sourceSchema = sourceFieldComponents[0];
-        sourceElement = sourceFieldComponents[1];
-        sourceQualifier = sourceFieldComponents.length > 2 ? sourceFieldComponents[2] : null;
-
-        String targetSchema, targetElement, targetQualifier;
-        String[] targetFieldComponents = line.getOptionValue("t", "").split("\\.");
-        if (targetFieldComponents.length < 2) {
-            System.err.println("Unsupported target metadata field name: " + line.getOptionValue("t"));
-            ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+        if (line.hasOption("apply-plan")) {
+            ChangePlan.applyFromCommandLine(MoveMetadataValues.class.getSimpleName(), line, OPTIONS);
+            return;
         }
-        targetSchema = targetFieldComponents[0];
-        targetElement = targetFieldComponents[1];
-        targetQualifier = targetFieldComponents.length > 2 ? targetFieldComponents[2] : null;
 
-        String language = line.getOptionValue("l");
+        final boolean dryRun = line.hasOption("n");
+        final boolean usePreferredCase = line.hasOption("p");
+        final boolean bulk = line.hasOption("bulk");
 
-        boolean matchCase = line.hasOption("c");
-        boolean usePreferredCase = line.hasOption("p");
+        VocabularyMatcher.Mode matchMode = VocabularyMatcher.Mode.EXACT;
+        if (line.hasOption("match")) {
+            try {
+                matchMode = VocabularyMatcher.Mode.valueOf(line.getOptionValue("match").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unsupported match mode: " + line.getOptionValue("match"));
+                ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+            }
+        }
+        MatcherCache matchers = new MatcherCache(matchMode, line.hasOption("c"), line.hasOption("ignore-accents"));
 
-        Map<String, String> valuesFilter = new HashMap<>();
-        if (line.hasOption("r")) {
-            File valuesFile = new File(line.getOptionValue("r"));
-            if (valuesFile.exists() && valuesFile.canRead()) {
-                try (Scanner scanner = new Scanner(valuesFile)) {
-                    while (scanner.hasNextLine()) {
-                        String value = scanner.nextLine().trim();
-                        String key = matchCase ? value : value.toLowerCase();
-                        valuesFilter.put(key, value);
-                    }
-                } catch (FileNotFoundException e) {
-                    System.err.println("Problem reading values file " + line.getOptionValue("r") + ": " + e.getMessage());
+        List<MoveRule> rules = null;
+        try {
+            if (line.hasOption("m")) {
+                if (line.hasOption("s") || line.hasOption("t") || line.hasOption("l") || line.hasOption("r")) {
+                    System.err.println("Give either a mapping file or -s, -t, -l and -r, not both");
                     ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
                 }
+                rules = MoveRule.readAll(new File(line.getOptionValue("m")), matchers);
             } else {
-                System.err.println("Values file " + line.getOptionValue("r") + " doesn't exist or is not readable, aborting");
+                if (!line.hasOption("s") || !line.hasOption("t")) {
+                    System.err.println("Both -s and -t are required unless a mapping file is given");
+                    ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+                }
+                VocabularyMatcher valuesMatcher = line.hasOption("r") ? matchers.get(new File(line.getOptionValue("r"))) : null;
+                rules = Collections.singletonList(new MoveRule(line.getOptionValue("s"), line.getOptionValue("t"), line.getOptionValue("l"), valuesMatcher));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+        }
+        if (rules.isEmpty()) {
+            System.err.println("No moves given, nothing to do");
+            System.exit(0);
+        }
+        for (MoveRule rule : rules) {
+            if (bulk && rule.source.equals(rule.target) && rule.language == null) {
+                System.err.println("Source and target field are the same and no language given, nothing to do for " + rule.source);
+                ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+            }
+        }
+        final List<MoveRule> finalRules = rules;
+
+        ChangePlan.PlanWriter plan = null;
+        if (line.hasOption("plan")) {
+            if (!dryRun || bulk) {
+                System.err.println("--plan can only be used together with -n and without --bulk");
                 ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
             }
+            try {
+                plan = ChangePlan.create(new File(line.getOptionValue("plan")), MoveMetadataValues.class.getSimpleName());
+            } catch (IOException e) {
+                System.err.println("Could not create change plan " + line.getOptionValue("plan") + ": " + e.getMessage());
+                System.exit(1);
+            }
         }
+        final ChangePlan.PlanWriter finalPlan = plan;
 
+        DeferredReindex reindex = new DeferredReindex(DeferredReindex.DEFAULT_BATCH_SIZE);
         Context context = null;
         try {
             context = new Context();
@@ -119,81 +155,267 @@ public class MoveMetadataValues {
                 }
             }
 
-            boolean changes = false;
-            if (dso == null || dso.getType() == Constants.SITE) {
-                changes = process(Item.findByMetadataField(context, sourceSchema, sourceElement, sourceQualifier, Item.ANY), sourceSchema, sourceElement, sourceQualifier, targetSchema, targetElement, targetQualifier, language, valuesFilter, matchCase, usePreferredCase, dryRun);
-            } else if (dso.getType() == Constants.COMMUNITY) {
-                Collection[] collections = ((Community) dso).getAllCollections();
-                for (Collection collection : collections) {
-                    changes |= process(collection.getAllItems(), sourceSchema, sourceElement, sourceQualifier, targetSchema, targetElement, targetQualifier, language, valuesFilter, matchCase, usePreferredCase, dryRun);
+            ItemProcessingEngine engine = null;
+            ItemIdSource source = null;
+            try {
+                if (bulk) {
+                    final List<BulkMetadataMove> moves = new ArrayList<>();
+                    for (MoveRule rule : rules) {
+                        int sourceFieldId = ScriptUtils.findMetadataField(context, rule.sourceField[0], rule.sourceField[1], rule.sourceField[2]).getFieldID();
+                        int targetFieldId = ScriptUtils.findMetadataField(context, rule.targetField[0], rule.targetField[1], rule.targetField[2]).getFieldID();
+                        moves.add(new BulkMetadataMove(sourceFieldId, rule.source, targetFieldId, rule.target, rule.language, rule.valuesMatcher, usePreferredCase, dryRun, reindex));
+                    }
+                    engine = new ItemProcessingEngine(MoveMetadataValues.class.getSimpleName(), new ItemBatchTask() {
+                        @Override
+                        public int process(Context context, int[] itemIds) throws SQLException {
+                            int[] changed = new int[0];
+                            for (BulkMetadataMove move : moves) {
+                                int[] moved = move.moveBatch(context, itemIds);
+                                int size = changed.length;
+                                changed = Arrays.copyOf(changed, size + moved.length);
+                                System.arraycopy(moved, 0, changed, size, moved.length);
+                            }
+                            return ItemIdSource.sortedUnique(changed).length;
+                        }
+                    });
+                } else {
+                    engine = new ItemProcessingEngine(MoveMetadataValues.class.getSimpleName(), new ItemTask() {
+                        @Override
+                        public boolean process(Context context, Item item) throws SQLException, AuthorizeException, IOException {
+                            return MoveMetadataValues.process(item, finalRules, usePreferredCase, dryRun, finalPlan);
+                        }
+                    });
                 }
-            } else if (dso.getType() == Constants.COLLECTION) {
-                changes = process(((Collection) dso).getAllItems(), sourceSchema, sourceElement, sourceQualifier, targetSchema, targetElement, targetQualifier, language, valuesFilter, matchCase, usePreferredCase, dryRun);
-            } else if (dso.getType() == Constants.ITEM) {
-                changes = process((Item) dso, sourceSchema, sourceElement, sourceQualifier, targetSchema, targetElement, targetQualifier, language, valuesFilter, matchCase, usePreferredCase, dryRun);
-            } else {
-                System.err.println("Unsupported type of DSpace object: " + dso.getTypeText() + ", need site, community, collection or item handle");
+                Map<String, ItemIdSource> sources = new LinkedHashMap<>();
+                for (MoveRule rule : rules) {
+                    if (!sources.containsKey(rule.source)) {
+                        sources.put(rule.source, ItemIdSource.archivedItemsWithField(context, rule.sourceField[0], rule.sourceField[1], rule.sourceField[2]));
+                    }
+                }
+                source = ItemScope.resolve(context, dso).toSource(ItemIdSource.union(new ArrayList<>(sources.values())));
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
+            }
+            context.abort();
+
+            try {
+                engine.configure(line);
+            } catch (ParseException e) {
+                System.err.println("Could not parse command line options: " + e.getMessage());
                 ScriptUtils.printHelpAndExit(FixSquishedMetadata.class.getSimpleName(), 1, OPTIONS);
             }
-            if (changes) {
-                context.complete();
+            if (bulk && engine.getCheckpointFile() != null) {
+                try {
+                    reindex.openJournal(engine.getCheckpointFile(), engine.isResuming());
+                } catch (IOException e) {
+                    System.err.println("Could not open reindex file for checkpoint " + engine.getCheckpointFile().getPath() + ": " + e.getMessage());
+                    System.exit(1);
+                }
             }
-        } catch (SQLException | AuthorizeException | IOException e) {
+            engine.run(source);
+
+            if (reindex.size() > 0) {
+                System.out.println("Reindexing " + reindex.size() + " changed item(s)");
+                context = new Context();
+                context.turnOffAuthorisationSystem();
+                reindex.run(context);
+                context.abort();
+            }
+        } catch (SQLException e) {
             e.printStackTrace(System.err);
         } finally {
             if (context != null && context.isValid()) {
                 context.abort();
             }
+            reindex.close();
+            if (plan != null) {
+                try {
+                    plan.close();
+                } catch (IOException e) {
+                    System.err.println("Could not write change plan " + line.getOptionValue("plan") + ": " + e.getMessage());
+                }
+            }
         }
     }
 
-    private static boolean process(ItemIterator items, String schema, String element, String qualifier, String targetSchema, String targetElement, String targetQualifier, String language, Map<String, String> valuesFilter, boolean matchCase, boolean usePreferredCase, boolean dryRun) throws SQLException, AuthorizeException {
-        boolean changes = false;
-        while (items.hasNext()) {
-            changes |= process(items.next(), schema, element, qualifier, targetSchema, targetElement, targetQualifier, language, valuesFilter, matchCase, usePreferredCase, dryRun);
-        }
-        return changes;
-    }
+    /**
+     * Apply all moves to the item, in order. The fields involved are read once; a later move sees the values as left
+     * by earlier moves, so a value moved into a field can be moved on again. Each changed field is rewritten once and
+     * the item is updated at most once. On a dry run, the new values of each field that would change are added to the
+     * plan, if there is one.
+     */
+    private static boolean process(Item item, List<MoveRule> rules, boolean usePreferredCase, boolean dryRun, ChangePlan.PlanWriter plan) throws SQLException, AuthorizeException, IOException {
+        Map<String, List<Metadatum>> fieldValues = new HashMap<>();
+        Map<String, String[]> changedFields = new LinkedHashMap<>();
+        int[] match = new int[3];
 
-    private static boolean process(Item item, String sourceSchema, String sourceElement, String sourceQualifier, String targetSchema, String targetElement, String targetQualifier, String language, Map<String, String> valuesFilter, boolean matchCase, boolean usePreferredCase, boolean dryRun) throws SQLException, AuthorizeException {
-        boolean changes = false;
-        List<Metadatum> retainSourceMetadata = new ArrayList<>();
-        List<Metadatum> addTargetMetadata = new ArrayList<>();
-
-        Metadatum[] currentSourceMd = item.getMetadata(sourceSchema, sourceElement, sourceQualifier, Item.ANY);
-        for (Metadatum md : currentSourceMd) {
-            String key = matchCase ? md.value : md.value.toLowerCase();
-            if (StringUtils.isNotBlank(md.value) && (valuesFilter.isEmpty() || valuesFilter.containsKey(key))) {
-                String newValue = usePreferredCase ? valuesFilter.get(key) : md.value;
-                System.out.println("item id=" + item.getID() + ": moving value |" + md.value + "| from field "
-                        + StringUtils.join(new String[] {sourceSchema, sourceElement, sourceQualifier}, ".")
-                        + " to |" + newValue + "| field "
-                        + StringUtils.join(new String[] {targetSchema, targetElement, targetQualifier}, "."));
-                if (!dryRun) {
+        for (MoveRule rule : rules) {
+            List<Metadatum> sourceValues = getValues(item, fieldValues, rule.source, rule.sourceField);
+            List<Metadatum> targetValues = getValues(item, fieldValues, rule.target, rule.targetField);
+            List<Metadatum> retainSourceMetadata = new ArrayList<>();
+            List<Metadatum> addTargetMetadata = new ArrayList<>();
+            for (Metadatum md : sourceValues) {
+                if (StringUtils.isNotBlank(md.value) && (rule.valuesMatcher == null || rule.valuesMatcher.find(md.value, match))) {
+                    String newValue = md.value;
+                    if (rule.valuesMatcher != null && usePreferredCase) {
+                        newValue = md.value.substring(0, match[1]) + rule.valuesMatcher.getTerm(match[0]) + md.value.substring(match[2]);
+                    }
+                    if (!ReportWriter.get().record(item.getID(), rule.source, md.value, newValue, "move to " + rule.target)) {
+                        System.out.println("item id=" + item.getID() + ": moving value |" + md.value + "| from field "
+                                + rule.source + " to |" + newValue + "| field " + rule.target);
+                    }
                     Metadatum newMd = new Metadatum();
-                    newMd.language = StringUtils.isNotBlank(language) ? language : md.language;
+                    newMd.language = rule.language != null ? rule.language : md.language;
                     newMd.value = newValue;
                     newMd.authority = md.authority;
                     newMd.confidence = md.confidence;
                     addTargetMetadata.add(newMd);
+                    if (!dryRun) {
+                        ScriptMetrics.get().valuesChanged(1);
+                    }
+                } else {
+                    // just leave value as is
+                    retainSourceMetadata.add(md);
                 }
-                changes = true;
-            } else {
-                // just leave value as is
-                retainSourceMetadata.add(md);
+            }
+            if (!addTargetMetadata.isEmpty()) {
+                // source and target may be the same list, so refill the source first
+                sourceValues.clear();
+                sourceValues.addAll(retainSourceMetadata);
+                targetValues.addAll(addTargetMetadata);
+                changedFields.put(rule.source, rule.sourceField);
+                changedFields.put(rule.target, rule.targetField);
             }
         }
-        if (!dryRun && changes) {
-            item.clearMetadata(sourceSchema, sourceElement, sourceQualifier, Item.ANY);
-            for (Metadatum newMd : retainSourceMetadata) {
-                item.addMetadata(sourceSchema, sourceElement, sourceQualifier, newMd.language, newMd.value, newMd.authority, newMd.confidence);
+        if (dryRun && plan != null) {
+            for (Map.Entry<String, String[]> field : changedFields.entrySet()) {
+                String[] components = field.getValue();
+                plan.record(item.getID(), field.getKey(), item.getMetadata(components[0], components[1], components[2], Item.ANY), fieldValues.get(field.getKey()));
             }
-            for (Metadatum newMd : addTargetMetadata) {
-                item.addMetadata(targetSchema, targetElement, targetQualifier, newMd.language, newMd.value, newMd.authority, newMd.confidence);
+        }
+        if (!dryRun && !changedFields.isEmpty()) {
+            for (Map.Entry<String, String[]> field : changedFields.entrySet()) {
+                String[] components = field.getValue();
+                item.clearMetadata(components[0], components[1], components[2], Item.ANY);
+                for (Metadatum newMd : fieldValues.get(field.getKey())) {
+                    item.addMetadata(components[0], components[1], components[2], newMd.language, newMd.value, newMd.authority, newMd.confidence);
+                }
             }
             item.updateMetadata();
         }
-        item.decache();
-        return changes;
+        return !changedFields.isEmpty();
+    }
+
+    private static List<Metadatum> getValues(Item item, Map<String, List<Metadatum>> fieldValues, String field, String[] components) {
+        List<Metadatum> values = fieldValues.get(field);
+        if (values == null) {
+            values = new ArrayList<>(Arrays.asList(item.getMetadata(components[0], components[1], components[2], Item.ANY)));
+            fieldValues.put(field, values);
+        }
+        return values;
+    }
+
+    /**
+     * One move from a source field to a target field, optionally restricted to some values and optionally changing
+     * the language.
+     */
+    static final class MoveRule {
+        final String source;
+        final String[] sourceField;
+        final String target;
+        final String[] targetField;
+        final String language;
+        final VocabularyMatcher valuesMatcher;
+
+        /**
+         * @param language new language for the moved values, or blank to leave it unchanged.
+         * @param valuesMatcher only move values that match, or null to move all values.
+         */
+        MoveRule(String source, String target, String language, VocabularyMatcher valuesMatcher) {
+            this.sourceField = parseField(source, "source");
+            this.source = source.trim();
+            this.targetField = parseField(target, "target");
+            this.target = target.trim();
+            this.language = StringUtils.isNotBlank(language) ? language.trim() : null;
+            this.valuesMatcher = valuesMatcher;
+        }
+
+        private static String[] parseField(String field, String role) {
+            String[] components = StringUtils.defaultString(field).trim().split("\\.");
+            if (components.length < 2 || components.length > 3) {
+                throw new IllegalArgumentException("Unsupported " + role + " metadata field name: " + field);
+            }
+            return new String[] {components[0], components[1], components.length > 2 ? components[2] : null};
+        }
+
+        /**
+         * Read moves from a mapping file with one move per line: source field, target field and optionally a values
+         * file and a language, separated by tabs. Leave the values file column empty to move all values. Values files
+         * are relative to the directory of the mapping file. Blank lines and lines starting with # are ignored.
+         */
+        static List<MoveRule> readAll(File file, MatcherCache matchers) throws IOException {
+            List<MoveRule> rules = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (StringUtils.isBlank(line) || line.trim().startsWith("#")) {
+                        continue;
+                    }
+                    String[] columns = line.split("\t", -1);
+                    if (columns.length < 2 || columns.length > 4) {
+                        throw new IllegalArgumentException("Line " + lineNumber + " of mapping file " + file.getPath() + " needs source field, target field and optionally values file and language, separated by tabs");
+                    }
+                    VocabularyMatcher valuesMatcher = null;
+                    if (columns.length > 2 && StringUtils.isNotBlank(columns[2])) {
+                        File valuesFile = new File(columns[2].trim());
+                        if (!valuesFile.isAbsolute()) {
+                            valuesFile = new File(file.getAbsoluteFile().getParentFile(), columns[2].trim());
+                        }
+                        valuesMatcher = matchers.get(valuesFile);
+                    }
+                    rules.add(new MoveRule(columns[0], columns[1], columns.length > 3 ? columns[3] : null, valuesMatcher));
+                }
+            }
+            return rules;
+        }
+    }
+
+    /**
+     * Loads each values file only once, however many moves use it.
+     */
+    static final class MatcherCache {
+        private final VocabularyMatcher.Mode mode;
+        private final boolean matchCase;
+        private final boolean ignoreAccents;
+        private final Map<String, VocabularyMatcher> matchers = new HashMap<>();
+
+        MatcherCache(VocabularyMatcher.Mode mode, boolean matchCase, boolean ignoreAccents) {
+            this.mode = mode;
+            this.matchCase = matchCase;
+            this.ignoreAccents = ignoreAccents;
+        }
+
+        VocabularyMatcher get(File valuesFile) throws IOException {
+            String key = valuesFile.getAbsolutePath();
+            VocabularyMatcher matcher = matchers.get(key);
+            if (matcher == null) {
+                if (!valuesFile.exists() || !valuesFile.canRead()) {
+                    throw new IllegalArgumentException("Values file " + valuesFile.getPath() + " doesn't exist or is not readable, aborting");
+                }
+                try {
+                    matcher = VocabularyMatcher.load(valuesFile, mode, matchCase, ignoreAccents);
+                } catch (IOException e) {
+                    throw new IOException("Problem reading values file " + valuesFile.getPath() + ": " + e.getMessage(), e);
+                }
+                if (matcher.size() == 0) {
+                    throw new IllegalArgumentException("Values file " + valuesFile.getPath() + " doesn't contain any values, aborting");
+                }
+                matchers.put(key, matcher);
+            }
+            return matcher;
+        }
     }
 }
@@ -1,9 +1,9 @@
 package nz.ac.waikato.its.irr.scripts;
 
+import org.apache.commons.cli.*;
 import org.apache.commons.lang.StringUtils;
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.content.*;
-import org.dspace.core.Constants;
 import org.dspace.core.Context;
 import org.dspace.handle.HandleManager;
 
@@ -14,11 +14,39 @@ import java.sql.SQLException;
  * @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ Institutional Research Repositories
  */
 public class RemovePNGThumbnailsForPDFs {
+	private static final Options OPTIONS = new Options();
+
+	static {
+		OPTIONS.addOption("h", "help", false, "Print help for this command and exit without taking any action.");
+		ItemProcessingEngine.addOptions(OPTIONS);
+	}
+
+	private static final ItemTask TASK = new ItemTask() {
+		@Override
+		public boolean process(Context context, Item item) throws SQLException, AuthorizeException, IOException {
+			return processItem(item);
+		}
+	};
 
 	public static void main(String[] args) {
+		ItemProcessingEngine engine = new ItemProcessingEngine(RemovePNGThumbnailsForPDFs.class.getSimpleName(), TASK);
+		CommandLine line = null;
+		try {
+			line = new BasicParser().parse(OPTIONS, args);
+			engine.configure(line);
+		} catch (ParseException e) {
+			System.err.println("Could not parse command line options: " + e.getMessage());
+			ScriptUtils.printHelpAndExit(RemovePNGThumbnailsForPDFs.class.getSimpleName(), 1, OPTIONS);
+		}
+
+		if (line == null || line.hasOption("h")) {
+			ScriptUtils.printHelpAndExit(RemovePNGThumbnailsForPDFs.class.getSimpleName(), 0, OPTIONS);
+			return;
+		}
+
 		String parentHandle = null;
-		if (args.length >= 1) {
-			parentHandle = args[0];
+		if (line.getArgs().length >= 1) {
+			parentHandle = line.getArgs()[0];
 		}
 
 		Context context = null;
@@ -26,32 +54,22 @@ public class RemovePNGThumbnailsForPDFs {
 			context = new Context();
 			context.turnOffAuthorisationSystem();
 
+			ItemIdSource source = null;
 			if (StringUtils.isBlank(parentHandle)) {
-				process(context, Item.findAll(context));
+				source = ItemIdSource.archivedItems();
 			} else {
 				DSpaceObject parent = HandleManager.resolveToObject(context, parentHandle);
 				if (parent != null) {
-					switch (parent.getType()) {
-						case Constants.COLLECTION:
-							process(context, ((Collection) parent).getAllItems()); // getAllItems because we want to work on non-archived ones as well
-							break;
-						case Constants.COMMUNITY:
-							Collection[] collections = ((Community) parent).getCollections();
-							for (Collection collection : collections) {
-								process(context, collection.getAllItems()); // getAllItems because we want to work on non-archived ones as well
-							}
-							break;
-						case Constants.SITE:
-							process(context, Item.findAll(context));
-							break;
-						case Constants.ITEM:
-							processItem((Item) parent);
-							context.commit();
-							break;
-					}
+					// scope includes non-archived items because we want to work on those as well
+					source = ItemScope.resolve(context, parent).toSource(ItemIdSource.archivedItems());
 				}
 			}
-		} catch (SQLException | AuthorizeException | IOException e) {
+			context.abort();
+
+			if (source != null) {
+				engine.run(source);
+			}
+		} catch (SQLException e) {
 			e.printStackTrace(System.err);
 		} finally {
 			if (context != null && context.isValid()) {
@@ -60,16 +78,8 @@ public class RemovePNGThumbnailsForPDFs {
 		}
 	}
 
-	private static void process(Context context, ItemIterator items) throws SQLException, IOException, AuthorizeException {
-		while (items.hasNext()) {
-			Item item = items.next();
-			processItem(item);
-			context.commit();
-			item.decache();
-		}
-	}
-
-	private static void processItem(Item item) throws SQLException, AuthorizeException, IOException {
+	private static boolean processItem(Item item) throws SQLException, AuthorizeException, IOException {
+		boolean changes = false;
 		Bundle[] thumbnailBundles = item.getBundles("THUMBNAIL");
 		for (Bundle bundle : thumbnailBundles) {
 			Bitstream[] bitstreams = bundle.getBitstreams();
@@ -78,11 +88,16 @@ public class RemovePNGThumbnailsForPDFs {
 					String bitstreamName = bitstream.getName();
 					if (hasJpegThumbnail(thumbnailBundles, bitstreamName)) {
 						bundle.removeBitstream(bitstream);
-						System.out.println("Removed generated PDF thumbnail " + bitstreamName + " from item id=" + item.getID() + ", it has a new JPG thumbnail");
+						if (!ReportWriter.get().record(item.getID(), bundle.getName(), bitstreamName, null, "remove")) {
+							System.out.println("Removed generated PDF thumbnail " + bitstreamName + " from item id=" + item.getID() + ", it has a new JPG thumbnail");
+						}
+						changes = true;
+						ScriptMetrics.get().valuesChanged(1);
 					}
 				}
 			}
 		}
+		return changes;
 	}
 
 	private static boolean hasJpegThumbnail(Bundle[] thumbnailBundles, String bitstreamName) {
@@ -0,0 +1,301 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Structured report of what a script changed, or would change on a dry run, for the script running in this JVM.
+ *
+ * Scripts hand each change to {@link #record(int, String, String, String, String)}, which is always safe to call. If
+ * the --report option was given, records go onto a bounded queue and a background thread writes them to the report
+ * file as CSV or JSON lines through a large buffer, gzipped if the file name ends in .gz; workers only block if the
+ * writer falls behind by more than the queue size. The console then only gets a progress line at most every
+ * {@value #PROGRESS_INTERVAL_SECONDS} seconds. Without --report, record returns false and the script prints the change
+ * to the console as before.
+ *
+ * The report is flushed and closed when the JVM exits.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class ReportWriter {
+	public static final String FORMAT_CSV = "csv";
+	public static final String FORMAT_JSONL = "jsonl";
+	static final int QUEUE_SIZE = 10000;
+	static final int BUFFER_SIZE = 1 << 20;
+	static final int PROGRESS_INTERVAL_SECONDS = 10;
+
+	private static final Record END = new Record(-1, null, null, null, null);
+
+	private static volatile ReportWriter current = new ReportWriter();
+	private static boolean started = false;
+
+	private final String scriptName;
+	private final File file;
+	private final String format;
+	private final BlockingQueue<Record> queue;
+	private Thread thread;
+	private volatile long written;
+	private volatile long dropped;
+	private volatile boolean incomplete;
+
+	private ReportWriter() {
+		this(null, null, null);
+	}
+
+	private ReportWriter(String scriptName, File file, String format) {
+		this.scriptName = scriptName;
+		this.file = file;
+		this.format = format;
+		this.queue = file != null ? new ArrayBlockingQueue<Record>(QUEUE_SIZE) : null;
+	}
+
+	/**
+	 * @return the report for the script running in this JVM.
+	 */
+	public static ReportWriter get() {
+		return current;
+	}
+
+	public static void addOptions(Options options) {
+		options.addOption(new Option(null, "report", true, "File to which to write a report of all changes (or, on a dry run, all changes that would be made) instead of printing them to the console. Gzipped if the file name ends in .gz. Optional."));
+		options.addOption(new Option(null, "report-format", true, "Format of the --report file: " + FORMAT_CSV + " or " + FORMAT_JSONL + " (one JSON object per line). Optional. Default is " + FORMAT_CSV + "."));
+	}
+
+	/**
+	 * Start writing the report, if requested on the command line. Subsequent calls return the already started report.
+	 */
+	public static synchronized ReportWriter start(String scriptName, CommandLine line) throws ParseException {
+		if (started || !line.hasOption("report")) {
+			return current;
+		}
+		String format = line.getOptionValue("report-format", FORMAT_CSV).toLowerCase();
+		if (!FORMAT_CSV.equals(format) && !FORMAT_JSONL.equals(format)) {
+			throw new ParseException("Value for --report-format must be " + FORMAT_CSV + " or " + FORMAT_JSONL + ", got " + format);
+		}
+		File file = new File(line.getOptionValue("report"));
+		Writer writer;
+		try {
+			OutputStream out = new FileOutputStream(file);
+			if (file.getName().endsWith(".gz")) {
+				out = new GZIPOutputStream(out, BUFFER_SIZE);
+			}
+			writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+		} catch (IOException e) {
+			throw new ParseException("Could not open report file " + file.getPath() + ": " + e.getMessage());
+		}
+		ReportWriter report = new ReportWriter(scriptName, file, format);
+		report.startThread(writer);
+		current = report;
+		started = true;
+		return report;
+	}
+
+	/**
+	 * @return whether changes go to a report file rather than the console.
+	 */
+	public boolean isEnabled() {
+		return file != null;
+	}
+
+	/**
+	 * Add a change to the report.
+	 *
+	 * @param field the metadata field or other part of the item that is changed.
+	 * @param oldValue the value before the change, or null if a value is added.
+	 * @param newValue the value after the change, or null if the value is removed.
+	 * @param action what is done, eg split, move or delete.
+	 * @return true if the change was recorded, false if there is no report and the caller should print the change.
+	 */
+	public boolean record(int itemId, String field, String oldValue, String newValue, String action) {
+		if (file == null) {
+			return false;
+		}
+		try {
+			queue.put(new Record(itemId, field, oldValue, newValue, action));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting to write to report " + file.getPath(), e);
+		}
+		return true;
+	}
+
+	private void startThread(final Writer writer) {
+		thread = new Thread("script-report-writer") {
+			@Override
+			public void run() {
+				writeAll(writer);
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("script-report-final") {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	private void writeAll(Writer writer) {
+		List<Record> records = new ArrayList<>();
+		long nextProgressNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(PROGRESS_INTERVAL_SECONDS);
+		boolean failed = false;
+		try {
+			if (FORMAT_CSV.equals(format)) {
+				try {
+					writer.write("item_id,field,action,old_value,new_value\n");
+				} catch (IOException e) {
+					failed = true;
+					incomplete = true;
+					System.err.println(scriptName + ": could not write report to " + file.getPath() + ": " + e.getMessage());
+				}
+			}
+			boolean done = false;
+			while (!done) {
+				Record first = queue.poll(1, TimeUnit.SECONDS);
+				if (first != null) {
+					records.add(first);
+					queue.drainTo(records);
+					for (Record record : records) {
+						if (record == END) {
+							done = true;
+							break;
+						}
+						if (!failed) {
+							try {
+								write(writer, record);
+								written++;
+								continue;
+							} catch (IOException e) {
+								// keep draining the queue so that workers don't block
+								failed = true;
+								incomplete = true;
+								System.err.println(scriptName + ": could not write report to " + file.getPath() + ": " + e.getMessage());
+							}
+						}
+						dropped++;
+					}
+					records.clear();
+				}
+				if (System.nanoTime() >= nextProgressNanos) {
+					System.out.println(scriptName + ": " + written + " change(s) reported to " + file.getPath());
+					nextProgressNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(PROGRESS_INTERVAL_SECONDS);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				// the buffered records may not have made it into the file
+				incomplete = true;
+				System.err.println(scriptName + ": could not close report file " + file.getPath() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private void write(Writer writer, Record record) throws IOException {
+		if (FORMAT_CSV.equals(format)) {
+			writer.write(Integer.toString(record.itemId));
+			writer.write(',');
+			writeCsv(writer, record.field);
+			writer.write(',');
+			writeCsv(writer, record.action);
+			writer.write(',');
+			writeCsv(writer, record.oldValue);
+			writer.write(',');
+			writeCsv(writer, record.newValue);
+			writer.write('\n');
+		} else {
+			writer.write("{\"item_id\":");
+			writer.write(Integer.toString(record.itemId));
+			writer.write(",\"field\":");
+			writeJson(writer, record.field);
+			writer.write(",\"action\":");
+			writeJson(writer, record.action);
+			writer.write(",\"old_value\":");
+			writeJson(writer, record.oldValue);
+			writer.write(",\"new_value\":");
+			writeJson(writer, record.newValue);
+			writer.write("}\n");
+		}
+	}
+
+	private static void writeCsv(Writer writer, String value) throws IOException {
+		if (value == null) {
+			return;
+		}
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (quote) {
+			writer.write('"');
+			writer.write(value.replace("\"", "\"\""));
+			writer.write('"');
+		} else {
+			writer.write(value);
+		}
+	}
+
+	private static void writeJson(Writer writer, String value) throws IOException {
+		if (value == null) {
+			writer.write("null");
+		} else {
+			writer.write('"');
+			writer.write(ScriptUtils.escapeJson(value));
+			writer.write('"');
+		}
+	}
+
+	/**
+	 * Write all outstanding records and close the report file. Called automatically when the JVM exits.
+	 */
+	public synchronized void close() {
+		if (file == null || thread == null) {
+			return;
+		}
+		try {
+			queue.put(END);
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+		if (incomplete) {
+			System.err.println(scriptName + ": the report in " + file.getPath() + " is incomplete because of a write error: "
+					+ written + " change(s) written, " + dropped + " change(s) dropped");
+		} else {
+			System.out.println(scriptName + ": reported " + written + " change(s) to " + file.getPath());
+		}
+	}
+
+	private static class Record {
+		private final int itemId;
+		private final String field;
+		private final String oldValue;
+		private final String newValue;
+		private final String action;
+
+		Record(int itemId, String field, String oldValue, String newValue, String action) {
+			this.itemId = itemId;
+			this.field = field;
+			this.oldValue = oldValue;
+			this.newValue = newValue;
+			this.action = action;
+		}
+	}
+}
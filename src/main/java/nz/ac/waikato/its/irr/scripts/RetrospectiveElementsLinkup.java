@@ -40,6 +40,8 @@ public class RetrospectiveElementsLinkup {
         OPTIONS.addOption(option);
         OPTIONS.addOption("h", "help", false, "Print help for this command and exit without taking any action.");
         OPTIONS.addOption("v", "verbose", false, "Report every pair that was linked up. If not given, only errors will be reported.");
+        BatchCommitter.addOption(OPTIONS);
+        ScriptMetrics.addOptions(OPTIONS);
     }
 
     public static void main(String[] args) {
@@ -66,6 +68,14 @@ public class RetrospectiveElementsLinkup {
         }
 
         boolean verbose = line.hasOption("v");
+        int batchSize = BatchCommitter.DEFAULT_BATCH_SIZE;
+        try {
+            batchSize = BatchCommitter.parseBatchSize(line);
+            ScriptMetrics.start(RetrospectiveElementsLinkup.class.getSimpleName(), line);
+        } catch (ParseException e) {
+            System.err.println("Could not parse command line options: " + e.getMessage());
+            ScriptUtils.printHelpAndExit(RetrospectiveElementsLinkup.class.getSimpleName(), 1, OPTIONS);
+        }
 
         int itemsProcessed = 0;
         Context context = null;
@@ -80,6 +90,7 @@ public class RetrospectiveElementsLinkup {
                     System.err.println("Input file " + fileName + " doesn't exist or is not readable for current user.");
                     ScriptUtils.printHelpAndExit(RetrospectiveElementsLinkup.class.getSimpleName(), 1, OPTIONS);
                 }
+                BatchCommitter batch = new BatchCommitter(context, batchSize);
                 try (Scanner scanner = new Scanner(inputFile)) {
                     while (scanner.hasNextLine()) {
                         String nextLine = scanner.nextLine();
@@ -91,6 +102,7 @@ public class RetrospectiveElementsLinkup {
                             System.err.println("Skipping line, was expecting comma-separated pair of DSpace id, Elements pubs id");
                             continue;
                         }
+                        batch.begin();
                         try {
                             processLinkup(context, toProcess[0], toProcess[1], verbose);
                             if (verbose) {
@@ -98,16 +110,22 @@ public class RetrospectiveElementsLinkup {
                                         toProcess[0],
                                         toProcess[1]));
                             }
-                            context.commit();
                             itemsProcessed++;
+                            ScriptMetrics.get().itemProcessed(true);
                         } catch (Exception e) {
                             System.err.println(String.format(
                                     "Caught exception while attempting to link up DSpace id %s and publications id %s, skipping line",
                                     toProcess[0],
                                     toProcess[1]));
                             e.printStackTrace(System.err);
+                            ScriptMetrics.get().itemFailed();
+                            batch.failed();
+                            context.clearCache();
+                            continue;
                         }
+                        batch.succeeded();
                     }
+                    batch.commit();
                 } catch (FileNotFoundException e) {
                     System.err.println("Error processing file " + fileName);
                 }
@@ -124,8 +142,9 @@ public class RetrospectiveElementsLinkup {
                             dspaceString,
                             pubsString));
                 }
-                context.commit();
+                ScriptMetrics.get().timedCommit(context);
                 itemsProcessed++;
+                ScriptMetrics.get().itemProcessed(true);
             }
         } catch (SQLException | AuthorizeException e) {
             e.printStackTrace(System.err);
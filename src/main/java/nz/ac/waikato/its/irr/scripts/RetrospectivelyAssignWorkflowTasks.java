@@ -32,6 +32,7 @@ public class RetrospectivelyAssignWorkflowTasks {
         option.setRequired(true);
         OPTIONS.addOption(option);
         OPTIONS.addOption("h", "help", false, "Print help for this command and exit without taking any action.");
+        ScriptMetrics.addOptions(OPTIONS);
     }
 
     public static void main(String[] args) {
@@ -52,6 +53,13 @@ public class RetrospectivelyAssignWorkflowTasks {
         }
         String email = line.getOptionValue('e');
 
+        try {
+            ScriptMetrics.start(RetrospectivelyAssignWorkflowTasks.class.getSimpleName(), line);
+        } catch (ParseException e) {
+            System.err.println("Could not parse command line options: " + e.getMessage());
+            ScriptUtils.printHelpAndExit(RetrospectivelyAssignWorkflowTasks.class.getSimpleName(), 1, OPTIONS);
+        }
+
         Context context = null;
         try {
             context = new Context();
@@ -71,6 +79,7 @@ public class RetrospectivelyAssignWorkflowTasks {
                 System.out.println("Processing task " + task.getID());
                 if (alreadyAccessibleTasks.contains(task)) {
                     System.out.println("EPerson already has access to this task");
+                    ScriptMetrics.get().itemProcessed(false);
                     continue;
                 }
 
@@ -81,6 +90,7 @@ public class RetrospectivelyAssignWorkflowTasks {
 
                 if (!ePersonShouldSeeTask) {
                     System.out.println("EPerson isn't in any of the workflow groups for this task");
+                    ScriptMetrics.get().itemProcessed(false);
                     continue;
                 }
 
@@ -90,9 +100,10 @@ public class RetrospectivelyAssignWorkflowTasks {
                 tr.setColumn("eperson_id", ePerson.getID());
                 tr.setColumn("workflow_id", task.getID());
                 DatabaseManager.insert(context, tr);
+                ScriptMetrics.get().itemProcessed(true);
             }
 
-            context.commit();
+            ScriptMetrics.get().timedCommit(context);
         } catch (Exception e) {
             e.printStackTrace(System.err);
         } finally {
@@ -0,0 +1,341 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.lang.time.DateFormatUtils;
+import org.dspace.core.Context;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime metrics for the script running in this JVM: item throughput, values changed, time spent per phase, commit
+ * latencies and heap use.
+ *
+ * Scripts and shared code report into {@link #get()}, which is always safe to call; nothing is published until a
+ * script calls {@link #start(String, CommandLine)}. Once started, the metrics are registered as an MXBean under
+ * {@value #JMX_DOMAIN} and, if the --metrics option was given, a snapshot is appended to that file as one JSON object
+ * per line at a fixed interval and once more when the JVM exits.
+ *
+ * Phase names are dotted, starting with what the time was spent on: db.* for database work, assetstore.* for reading
+ * or writing bitstream content and task.* for the script's own processing.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class ScriptMetrics implements ScriptMetricsMXBean {
+	public static final String JMX_DOMAIN = "nz.ac.waikato.its.irr.scripts";
+	public static final int DEFAULT_INTERVAL_SECONDS = 10;
+
+	private static final long[] COMMIT_BUCKETS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+	private static volatile ScriptMetrics current = new ScriptMetrics("unknown");
+	private static boolean started = false;
+
+	private final String scriptName;
+	private final long startNanos = System.nanoTime();
+	private final AtomicLong itemsProcessed = new AtomicLong();
+	private final AtomicLong itemsChanged = new AtomicLong();
+	private final AtomicLong itemsFailed = new AtomicLong();
+	private final AtomicLong valuesChanged = new AtomicLong();
+	private final AtomicLongArray commitLatencies = new AtomicLongArray(COMMIT_BUCKETS_MILLIS.length + 1);
+	private final ConcurrentMap<String, Phase> phases = new ConcurrentHashMap<>();
+
+	// for the items per second between two snapshots
+	private long lastSnapshotNanos = startNanos;
+	private long lastSnapshotItems;
+
+	private ScriptMetrics(String scriptName) {
+		this.scriptName = scriptName;
+	}
+
+	/**
+	 * @return the metrics for the script running in this JVM.
+	 */
+	public static ScriptMetrics get() {
+		return current;
+	}
+
+	public static void addOptions(Options options) {
+		options.addOption(new Option(null, "metrics", true, "File to which to append runtime metrics as JSON lines. Optional."));
+		options.addOption(new Option(null, "metrics-interval", true, "Number of seconds between two metrics snapshots. Optional. Default is " + DEFAULT_INTERVAL_SECONDS + "."));
+	}
+
+	/**
+	 * Start collecting metrics for the given script, register them with JMX and, if requested on the command line,
+	 * start writing snapshots to a file. Subsequent calls return the already started metrics.
+	 */
+	public static synchronized ScriptMetrics start(String scriptName, CommandLine line) throws ParseException {
+		if (started) {
+			return current;
+		}
+		int intervalSeconds = DEFAULT_INTERVAL_SECONDS;
+		if (line.hasOption("metrics-interval")) {
+			intervalSeconds = ItemProcessingEngine.parsePositiveInt(line, "metrics-interval");
+		}
+		ScriptMetrics metrics = new ScriptMetrics(scriptName);
+		current = metrics;
+		started = true;
+		metrics.registerMBean();
+		if (line.hasOption("metrics")) {
+			metrics.startWriter(new File(line.getOptionValue("metrics")), intervalSeconds);
+		}
+		return metrics;
+	}
+
+	private void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(JMX_DOMAIN, "name", ObjectName.quote(scriptName));
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			System.err.println("Could not register script metrics with JMX: " + e.getMessage());
+		}
+	}
+
+	private void startWriter(final File file, int intervalSeconds) {
+		final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "script-metrics-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final Runnable writeSnapshot = new Runnable() {
+			@Override
+			public void run() {
+				try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+					writer.write(toJson());
+					writer.write('\n');
+				} catch (IOException e) {
+					System.err.println("Could not write metrics to " + file.getPath() + ": " + e.getMessage());
+				}
+			}
+		};
+		scheduler.scheduleAtFixedRate(writeSnapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread("script-metrics-final") {
+			@Override
+			public void run() {
+				scheduler.shutdownNow();
+				writeSnapshot.run();
+			}
+		});
+	}
+
+	public void itemProcessed(boolean changed) {
+		itemsProcessed.incrementAndGet();
+		if (changed) {
+			itemsChanged.incrementAndGet();
+		}
+	}
+
+	public void itemsProcessed(int count, int changed) {
+		itemsProcessed.addAndGet(count);
+		itemsChanged.addAndGet(changed);
+	}
+
+	public void itemFailed() {
+		itemsFailed.incrementAndGet();
+	}
+
+	public void itemsFailed(int count) {
+		itemsFailed.addAndGet(count);
+	}
+
+	public void valuesChanged(int count) {
+		valuesChanged.addAndGet(count);
+	}
+
+	/**
+	 * Record time spent in a phase.
+	 *
+	 * @param nanos elapsed time as measured with System.nanoTime().
+	 */
+	public void recordPhase(String phase, long nanos) {
+		Phase existing = phases.get(phase);
+		if (existing == null) {
+			Phase created = new Phase();
+			existing = phases.putIfAbsent(phase, created);
+			if (existing == null) {
+				existing = created;
+			}
+		}
+		existing.record(nanos);
+	}
+
+	/**
+	 * Commit the given context, recording how long the commit took.
+	 */
+	public void timedCommit(Context context) throws SQLException {
+		long start = System.nanoTime();
+		context.commit();
+		recordCommit(System.nanoTime() - start);
+	}
+
+	/**
+	 * Record the time taken by a database commit. This is also tracked as phase db.commit.
+	 */
+	public void recordCommit(long nanos) {
+		recordPhase("db.commit", nanos);
+		long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+		int bucket = 0;
+		while (bucket < COMMIT_BUCKETS_MILLIS.length && millis > COMMIT_BUCKETS_MILLIS[bucket]) {
+			bucket++;
+		}
+		commitLatencies.incrementAndGet(bucket);
+	}
+
+	@Override
+	public String getScriptName() {
+		return scriptName;
+	}
+
+	@Override
+	public long getUptimeSeconds() {
+		return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+	}
+
+	@Override
+	public long getItemsProcessed() {
+		return itemsProcessed.get();
+	}
+
+	@Override
+	public long getItemsChanged() {
+		return itemsChanged.get();
+	}
+
+	@Override
+	public long getItemsFailed() {
+		return itemsFailed.get();
+	}
+
+	@Override
+	public long getValuesChanged() {
+		return valuesChanged.get();
+	}
+
+	@Override
+	public double getItemsPerSecond() {
+		return ratePerSecond(getItemsProcessed(), System.nanoTime() - startNanos);
+	}
+
+	private static double ratePerSecond(long count, long nanos) {
+		return nanos > 0 ? count * (double) TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+	}
+
+	@Override
+	public long getCommits() {
+		long commits = 0;
+		for (int i = 0; i < commitLatencies.length(); i++) {
+			commits += commitLatencies.get(i);
+		}
+		return commits;
+	}
+
+	@Override
+	public Map<String, Long> getCommitLatencyHistogram() {
+		Map<String, Long> histogram = new LinkedHashMap<>();
+		for (int i = 0; i < commitLatencies.length(); i++) {
+			String bound = i < COMMIT_BUCKETS_MILLIS.length ? String.valueOf(COMMIT_BUCKETS_MILLIS[i]) : "inf";
+			histogram.put(bound, commitLatencies.get(i));
+		}
+		return histogram;
+	}
+
+	@Override
+	public Map<String, Long> getPhaseTotalMillis() {
+		Map<String, Long> totals = new TreeMap<>();
+		for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+			totals.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue().totalNanos.get()));
+		}
+		return totals;
+	}
+
+	@Override
+	public long getHeapUsedBytes() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	@Override
+	public long getHeapMaxBytes() {
+		return Runtime.getRuntime().maxMemory();
+	}
+
+	/**
+	 * @return a snapshot of all metrics as a single-line JSON object.
+	 */
+	synchronized String toJson() {
+		long now = System.nanoTime();
+		long items = getItemsProcessed();
+		double recentItemsPerSecond = ratePerSecond(items - lastSnapshotItems, now - lastSnapshotNanos);
+		lastSnapshotNanos = now;
+		lastSnapshotItems = items;
+
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"time\":\"").append(DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(System.currentTimeMillis())).append('"');
+		json.append(",\"script\":\"").append(ScriptUtils.escapeJson(scriptName)).append('"');
+		json.append(",\"uptimeSeconds\":").append(getUptimeSeconds());
+		json.append(",\"itemsProcessed\":").append(items);
+		json.append(",\"itemsChanged\":").append(getItemsChanged());
+		json.append(",\"itemsFailed\":").append(getItemsFailed());
+		json.append(",\"valuesChanged\":").append(getValuesChanged());
+		json.append(",\"itemsPerSecond\":").append(String.format(Locale.ROOT, "%.2f", recentItemsPerSecond));
+		json.append(",\"itemsPerSecondOverall\":").append(String.format(Locale.ROOT, "%.2f", getItemsPerSecond()));
+		json.append(",\"commits\":").append(getCommits());
+		json.append(",\"commitLatencyMillis\":{");
+		boolean first = true;
+		for (Map.Entry<String, Long> bucket : getCommitLatencyHistogram().entrySet()) {
+			json.append(first ? "" : ",").append("\"le").append(bucket.getKey()).append("\":").append(bucket.getValue());
+			first = false;
+		}
+		json.append("},\"phases\":{");
+		first = true;
+		for (Map.Entry<String, Phase> entry : new TreeMap<>(phases).entrySet()) {
+			Phase phase = entry.getValue();
+			json.append(first ? "" : ",").append('"').append(ScriptUtils.escapeJson(entry.getKey())).append("\":{");
+			json.append("\"count\":").append(phase.count.get());
+			json.append(",\"totalMillis\":").append(TimeUnit.NANOSECONDS.toMillis(phase.totalNanos.get()));
+			json.append(",\"maxMillis\":").append(TimeUnit.NANOSECONDS.toMillis(phase.maxNanos.get()));
+			json.append('}');
+			first = false;
+		}
+		json.append('}');
+		json.append(",\"heapUsedBytes\":").append(getHeapUsedBytes());
+		json.append(",\"heapMaxBytes\":").append(getHeapMaxBytes());
+		json.append('}');
+		return json.toString();
+	}
+
+	private static class Phase {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max;
+			while ((max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos)) {
+				// retry
+			}
+		}
+	}
+}
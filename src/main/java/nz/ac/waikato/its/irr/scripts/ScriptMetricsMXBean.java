@@ -0,0 +1,41 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ScriptMetrics}.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public interface ScriptMetricsMXBean {
+	String getScriptName();
+
+	long getUptimeSeconds();
+
+	long getItemsProcessed();
+
+	long getItemsChanged();
+
+	long getItemsFailed();
+
+	long getValuesChanged();
+
+	double getItemsPerSecond();
+
+	long getCommits();
+
+	/**
+	 * @return number of commits per latency bucket, keyed by the bucket's upper bound in milliseconds ("inf" for the
+	 * last bucket).
+	 */
+	Map<String, Long> getCommitLatencyHistogram();
+
+	/**
+	 * @return total time spent in each phase, in milliseconds.
+	 */
+	Map<String, Long> getPhaseTotalMillis();
+
+	long getHeapUsedBytes();
+
+	long getHeapMaxBytes();
+}
@@ -2,13 +2,102 @@ package nz.ac.waikato.its.irr.scripts;
 
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
+import org.dspace.content.MetadataField;
+import org.dspace.content.MetadataSchema;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+
+import java.sql.SQLException;
 
 /**
  * @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ Institutional Research Repositories
  */
 public class ScriptUtils {
-	static void printHelpAndExit(String name, int exitCode, Options options) {
+	public static void printHelpAndExit(String name, int exitCode, Options options) {
 		new HelpFormatter().printHelp(name + " options", options);
 		System.exit(exitCode);
 	}
+
+	/**
+	 * Look up a metadata field in the registry.
+	 *
+	 * @throws IllegalArgumentException if there is no such field.
+	 */
+	public static MetadataField findMetadataField(Context context, String schema, String element, String qualifier) throws SQLException {
+		MetadataSchema registrySchema = MetadataSchema.find(context, schema);
+		MetadataField field = null;
+		if (registrySchema != null) {
+			field = MetadataField.findByElement(context, registrySchema.getSchemaID(), element, qualifier);
+		}
+		if (field == null) {
+			throw new IllegalArgumentException("No such metadata field: " + schema + "." + element + (qualifier != null ? "." + qualifier : ""));
+		}
+		return field;
+	}
+
+	/**
+	 * Escape a string for use inside a double-quoted JSON string.
+	 */
+	public static String escapeJson(String value) {
+		StringBuilder escaped = new StringBuilder(value.length() + 16);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':
+					escaped.append("\\\"");
+					break;
+				case '\\':
+					escaped.append("\\\\");
+					break;
+				case '\n':
+					escaped.append("\\n");
+					break;
+				case '\r':
+					escaped.append("\\r");
+					break;
+				case '\t':
+					escaped.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						escaped.append(String.format("\\u%04x", (int) c));
+					} else {
+						escaped.append(c);
+					}
+			}
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * @return the text_value column of metadatavalue with the given table alias, in a form that can be compared with a
+	 * string parameter: text_value is a CLOB on Oracle, so it needs TO_CHAR there, as in Item.findByMetadataField.
+	 */
+	public static String textValueColumn(String alias) {
+		String column = alias + ".text_value";
+		return DatabaseManager.isOracle() ? "TO_CHAR(" + column + ")" : column;
+	}
+
+	/**
+	 * @return count comma-separated question marks, for an IN clause with count parameters.
+	 */
+	public static String placeholders(int count) {
+		StringBuilder placeholders = new StringBuilder(count * 3);
+		for (int i = 0; i < count; i++) {
+			placeholders.append(i == 0 ? "?" : ", ?");
+		}
+		return placeholders.toString();
+	}
+
+	/**
+	 * @return the given IDs as query parameters, after any other parameters given.
+	 */
+	public static Object[] toParameters(int[] ids, Object... otherParameters) {
+		Object[] parameters = new Object[otherParameters.length + ids.length];
+		System.arraycopy(otherParameters, 0, parameters, 0, otherParameters.length);
+		for (int i = 0; i < ids.length; i++) {
+			parameters[otherParameters.length + i] = ids[i];
+		}
+		return parameters;
+	}
 }
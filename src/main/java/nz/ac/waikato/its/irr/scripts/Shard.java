@@ -0,0 +1,58 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.cli.ParseException;
+
+/**
+ * A stable subset of the item ID space, so that several independent runs (eg on different hosts) can split a job
+ * between them without overlap and without talking to each other.
+ *
+ * Shards are assigned whole ID ranges of {@link ItemProcessingEngine#RANGE_SIZE} IDs in turn: with n shards, range r
+ * belongs to shard (r mod n) + 1. This only depends on the item ID, so every run agrees on which items belong to which
+ * shard.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class Shard {
+	public static final Shard ALL = new Shard(1, 1);
+
+	private final int number;
+	private final int count;
+
+	public Shard(int number, int count) {
+		if (count < 1 || number < 1 || number > count) {
+			throw new IllegalArgumentException("Shard number must be between 1 and " + count + ", got " + number);
+		}
+		this.number = number;
+		this.count = count;
+	}
+
+	/**
+	 * Parse a shard specification of the form k/n, where n is the total number of shards and k (1 &lt;= k &lt;= n) is
+	 * the shard to pick.
+	 */
+	public static Shard parse(String spec) throws ParseException {
+		String[] parts = spec != null ? spec.split("/") : new String[0];
+		if (parts.length == 2) {
+			try {
+				return new Shard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+			} catch (IllegalArgumentException e) {
+				// NumberFormatException is an IllegalArgumentException too
+				throw new ParseException("Invalid shard " + spec + ": " + e.getMessage());
+			}
+		}
+		throw new ParseException("Invalid shard " + spec + ", need k/n");
+	}
+
+	public boolean containsRange(int range) {
+		return range % count == number - 1;
+	}
+
+	public boolean contains(int itemId) {
+		return containsRange(itemId / ItemProcessingEngine.RANGE_SIZE);
+	}
+
+	@Override
+	public String toString() {
+		return number + "/" + count;
+	}
+}
@@ -0,0 +1,142 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which items are processed, so that maintenance scripts can run alongside the live repository.
+ *
+ * The rate never exceeds the configured maximum. If a commit latency ceiling is configured, the rate is halved
+ * whenever a commit takes longer than the ceiling and raised again by 10% whenever a commit takes less than half of
+ * it, so the script backs off while the database is busy and speeds up again once it's idle. One throttle is shared
+ * by all worker threads of a run.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public class Throttle {
+	private static final double MIN_ITEMS_PER_SECOND = 0.5;
+	private static final double BACK_OFF_FACTOR = 0.5;
+	private static final double SPEED_UP_FACTOR = 1.1;
+	private static final long MIN_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final double maxItemsPerSecond;
+	private final long maxCommitNanos;
+
+	private double itemsPerSecond;
+	private long nextPermitNanos = System.nanoTime();
+
+	// actual throughput, used as the starting point when backing off from an unlimited rate; only measured over windows
+	// of at least a second, since with several threads one commit often follows another almost immediately
+	private long windowStartNanos = System.nanoTime();
+	private long windowItems;
+	private double observedItemsPerSecond;
+
+	/**
+	 * @param maxItemsPerSecond upper limit for the rate, or Double.POSITIVE_INFINITY for no limit.
+	 * @param maxCommitMillis commit latency ceiling in milliseconds, or 0 to not adapt the rate to commit latency.
+	 */
+	public Throttle(double maxItemsPerSecond, long maxCommitMillis) {
+		this.maxItemsPerSecond = maxItemsPerSecond;
+		this.maxCommitNanos = TimeUnit.MILLISECONDS.toNanos(maxCommitMillis);
+		this.itemsPerSecond = maxItemsPerSecond;
+	}
+
+	public static void addOptions(Options options) {
+		options.addOption(new Option(null, "max-items-per-sec", true, "Maximum number of items to process per second, across all threads. Optional. If omitted, the rate is only limited by --max-commit-latency."));
+		options.addOption(new Option(null, "max-commit-latency", true, "Commit latency ceiling in milliseconds. If a commit takes longer, processing slows down until commits are fast again. Optional."));
+	}
+
+	/**
+	 * @return the throttle configured on the given command line, or null if neither throttle option was given.
+	 */
+	public static Throttle fromCommandLine(CommandLine line) throws ParseException {
+		if (!line.hasOption("max-items-per-sec") && !line.hasOption("max-commit-latency")) {
+			return null;
+		}
+		double maxItemsPerSecond = Double.POSITIVE_INFINITY;
+		if (line.hasOption("max-items-per-sec")) {
+			maxItemsPerSecond = ItemProcessingEngine.parsePositiveInt(line, "max-items-per-sec");
+		}
+		long maxCommitMillis = 0;
+		if (line.hasOption("max-commit-latency")) {
+			maxCommitMillis = ItemProcessingEngine.parsePositiveInt(line, "max-commit-latency");
+		}
+		return new Throttle(maxItemsPerSecond, maxCommitMillis);
+	}
+
+	/**
+	 * Wait until the next item may be processed.
+	 */
+	public void acquire() throws InterruptedException {
+		acquire(1);
+	}
+
+	/**
+	 * Wait until the next few items may be processed together.
+	 */
+	public void acquire(int items) throws InterruptedException {
+		long waitNanos;
+		synchronized (this) {
+			windowItems += items;
+			if (Double.isInfinite(itemsPerSecond)) {
+				return;
+			}
+			long now = System.nanoTime();
+			nextPermitNanos = Math.max(nextPermitNanos, now);
+			waitNanos = nextPermitNanos - now;
+			nextPermitNanos += (long) (items * TimeUnit.SECONDS.toNanos(1) / itemsPerSecond);
+		}
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+			ScriptMetrics.get().recordPhase("throttle.wait", waitNanos);
+		}
+	}
+
+	/**
+	 * Adapt the rate to the time taken by a commit.
+	 */
+	public synchronized void commitFinished(long nanos) {
+		long now = System.nanoTime();
+		long windowNanos = now - windowStartNanos;
+		if (windowItems > 0 && windowNanos >= MIN_WINDOW_NANOS) {
+			observedItemsPerSecond = windowItems * (double) TimeUnit.SECONDS.toNanos(1) / windowNanos;
+			windowStartNanos = now;
+			windowItems = 0;
+		}
+
+		if (maxCommitNanos <= 0) {
+			return;
+		}
+		if (nanos > maxCommitNanos) {
+			double current = itemsPerSecond;
+			if (Double.isInfinite(current)) {
+				current = observedItemsPerSecond;
+				if (current <= 0 && windowItems > 0 && windowNanos > 0) {
+					// no full window yet, go by what has been processed so far
+					current = windowItems * (double) TimeUnit.SECONDS.toNanos(1) / windowNanos;
+				}
+				if (current <= 0) {
+					// nothing processed yet, so there is no rate to back off from
+					return;
+				}
+			}
+			itemsPerSecond = Math.max(MIN_ITEMS_PER_SECOND, current * BACK_OFF_FACTOR);
+			System.out.println(String.format(Locale.ROOT, "Commit took %d ms (ceiling is %d ms), slowing down to %.1f items/sec",
+					TimeUnit.NANOSECONDS.toMillis(nanos), TimeUnit.NANOSECONDS.toMillis(maxCommitNanos), itemsPerSecond));
+		} else if (nanos < maxCommitNanos / 2 && itemsPerSecond < maxItemsPerSecond) {
+			itemsPerSecond = Math.min(maxItemsPerSecond, itemsPerSecond * SPEED_UP_FACTOR);
+		}
+	}
+
+	/**
+	 * @return the rate currently allowed, in items per second.
+	 */
+	public synchronized double getItemsPerSecond() {
+		return itemsPerSecond;
+	}
+}
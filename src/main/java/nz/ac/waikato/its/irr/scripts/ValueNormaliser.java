@@ -0,0 +1,144 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tidies up individual metadata values. Compile one from a list of steps with {@link #compile(String)} once per run;
+ * instances are immutable and can be shared between threads.
+ *
+ * Available steps:
+ * <ul>
+ * <li>whitespace: replace each run of whitespace (including line breaks and tabs) with a single space</li>
+ * <li>trim: remove leading and trailing whitespace</li>
+ * <li>nfc: convert to Unicode normalisation form C</li>
+ * <li>punctuation: remove trailing full stops, commas, semicolons and colons</li>
+ * </ul>
+ * The whitespace, trim and punctuation steps are done together in a single scan over the characters of the value,
+ * without regular expressions or intermediate strings; NFC conversion only happens for values that aren't in NFC
+ * already. The steps are always applied in the order listed above, whatever order they are given in.
+ *
+ * This class doesn't depend on DSpace, see {@link MetadataValueTransforms}.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public final class ValueNormaliser {
+	public static final String WHITESPACE = "whitespace";
+	public static final String TRIM = "trim";
+	public static final String NFC = "nfc";
+	public static final String PUNCTUATION = "punctuation";
+	public static final List<String> STEPS = Arrays.asList(WHITESPACE, TRIM, NFC, PUNCTUATION);
+
+	public static final String DEFAULT_STEPS = WHITESPACE + "," + TRIM;
+	public static final ValueNormaliser DEFAULT = compile(DEFAULT_STEPS);
+
+	private static final String TRAILING_PUNCTUATION = ".,;:";
+
+	private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+
+	private final boolean collapseWhitespace;
+	private final boolean trim;
+	private final boolean nfc;
+	private final boolean punctuation;
+
+	private ValueNormaliser(boolean collapseWhitespace, boolean trim, boolean nfc, boolean punctuation) {
+		this.collapseWhitespace = collapseWhitespace;
+		this.trim = trim;
+		this.nfc = nfc;
+		this.punctuation = punctuation;
+	}
+
+	/**
+	 * @param steps comma-separated list of step names, may be empty to leave values unchanged.
+	 * @throws IllegalArgumentException if any of the steps is unknown.
+	 */
+	public static ValueNormaliser compile(String steps) {
+		boolean collapseWhitespace = false, trim = false, nfc = false, punctuation = false;
+		for (String step : StringUtils.split(StringUtils.defaultString(steps), ", ")) {
+			String name = step.toLowerCase();
+			if (WHITESPACE.equals(name)) {
+				collapseWhitespace = true;
+			} else if (TRIM.equals(name)) {
+				trim = true;
+			} else if (NFC.equals(name)) {
+				nfc = true;
+			} else if (PUNCTUATION.equals(name)) {
+				punctuation = true;
+			} else {
+				throw new IllegalArgumentException("Unknown normalisation step " + step + ", available steps are " + StringUtils.join(STEPS, ", "));
+			}
+		}
+		return new ValueNormaliser(collapseWhitespace, trim, nfc, punctuation);
+	}
+
+	public String normalise(String value) {
+		return normalise(value, 0, value.length());
+	}
+
+	/**
+	 * Normalise the part of the value from start (inclusive) to end (exclusive).
+	 */
+	public String normalise(String value, int start, int end) {
+		StringBuilder out = BUFFER.get();
+		out.setLength(0);
+		boolean pendingSpace = false;
+		boolean changed = false;
+		for (int i = start; i < end; i++) {
+			char c = value.charAt(i);
+			if (isWhitespace(c)) {
+				if (trim && out.length() == 0) {
+					changed = true;
+					continue;
+				}
+				if (collapseWhitespace) {
+					changed |= pendingSpace || c != ' ';
+					pendingSpace = true;
+					continue;
+				}
+			}
+			if (pendingSpace) {
+				out.append(' ');
+				pendingSpace = false;
+			}
+			out.append(c);
+		}
+		if (pendingSpace) {
+			if (trim) {
+				changed = true;
+			} else {
+				out.append(' ');
+			}
+		}
+		int length = out.length();
+		while (length > 0) {
+			char last = out.charAt(length - 1);
+			if ((trim && isWhitespace(last)) || (punctuation && TRAILING_PUNCTUATION.indexOf(last) >= 0)) {
+				length--;
+			} else {
+				break;
+			}
+		}
+		changed |= length < out.length();
+		out.setLength(length);
+
+		if (nfc && !Normalizer.isNormalized(out, Normalizer.Form.NFC)) {
+			return Normalizer.normalize(out, Normalizer.Form.NFC);
+		}
+		if (!changed) {
+			return start == 0 && end == value.length() ? value : value.substring(start, end);
+		}
+		return out.toString();
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c <= ' ' || Character.isWhitespace(c) || Character.isSpaceChar(c);
+	}
+}
@@ -0,0 +1,396 @@
+package nz.ac.waikato.its.irr.scripts;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.Arrays;
+
+/**
+ * Matches metadata values against a large list of terms, eg the restrict-values file of {@link MoveMetadataValues}.
+ *
+ * The terms are read from a memory-mapped UTF-8 file with one term per line and stored in an immutable trie over the
+ * folded characters of each term; the terms themselves stay in the mapped file and are only decoded when asked for
+ * with {@link #getTerm(int)}. Lookups don't allocate and the matcher can be shared between threads.
+ *
+ * Folding is done one char at a time through a lookup table, optionally ignoring case and/or accents. Characters outside
+ * the Basic Multilingual Plane are never folded.
+ *
+ * This class doesn't depend on DSpace, see {@link MetadataValueTransforms}.
+ *
+ * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
+ */
+public final class VocabularyMatcher {
+	public enum Mode {
+		/**
+		 * The whole value must be a term.
+		 */
+		EXACT,
+		/**
+		 * The value must start with a term.
+		 */
+		PREFIX,
+		/**
+		 * A term must occur anywhere in the value, starting and ending at word boundaries.
+		 */
+		PHRASE
+	}
+
+	private static final int NO_NODE = -1;
+	private static final int NO_TERM = -1;
+	// folded value of characters that are skipped altogether, ie combining marks when ignoring accents
+	private static final char SKIP = '\uffff';
+
+	private final Mode mode;
+	private final char[] folding;
+	// the children of node n are at edgeChars/edgeTargets[childStart[n]] up to (excluding) [childStart[n + 1]], sorted
+	// by char; node 0 is the root
+	private final int[] childStart;
+	private final char[] edgeChars;
+	private final int[] edgeTargets;
+	private final int[] nodeTerms;
+	private final int[] termOffsets;
+	private final int[] termLengths;
+	private final ByteBuffer file;
+
+	private VocabularyMatcher(Mode mode, char[] folding, int[] childStart, char[] edgeChars, int[] edgeTargets, int[] nodeTerms, int[] termOffsets, int[] termLengths, ByteBuffer file) {
+		this.mode = mode;
+		this.folding = folding;
+		this.childStart = childStart;
+		this.edgeChars = edgeChars;
+		this.edgeTargets = edgeTargets;
+		this.nodeTerms = nodeTerms;
+		this.termOffsets = termOffsets;
+		this.termLengths = termLengths;
+		this.file = file;
+	}
+
+	/**
+	 * Load the terms from the given file. Leading and trailing whitespace is removed from each line; blank lines are
+	 * ignored. If several lines fold to the same term, the last one wins.
+	 */
+	public static VocabularyMatcher load(File file, Mode mode, boolean matchCase, boolean ignoreAccents) throws IOException {
+		char[] folding = foldingTable(matchCase, ignoreAccents);
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("File " + file.getPath() + " is too large");
+			}
+			// the mapping stays valid after the channel is closed
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		Builder builder = new Builder(folding);
+		int limit = buffer.limit();
+		int position = 0;
+		if (limit >= 3 && (buffer.get(0) & 0xff) == 0xef && (buffer.get(1) & 0xff) == 0xbb && (buffer.get(2) & 0xff) == 0xbf) {
+			position = 3; // byte order mark
+		}
+		while (position < limit) {
+			int lineEnd = position;
+			while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			int start = position;
+			int end = lineEnd;
+			while (start < end && (buffer.get(start) & 0xff) <= ' ') {
+				start++;
+			}
+			while (end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+				end--;
+			}
+			if (end > start) {
+				builder.add(buffer, start, end);
+			}
+			position = lineEnd + 1;
+		}
+		return builder.build(mode, buffer);
+	}
+
+	/**
+	 * @return the number of distinct terms.
+	 */
+	public int size() {
+		return termOffsets.length;
+	}
+
+	/**
+	 * Look for a term in the given value. If there are several matches, the one starting first wins, and of those the
+	 * longest.
+	 *
+	 * @param match receives the term number, the start of the match (inclusive) and the end of the match (exclusive)
+	 *              in its first three elements. Callers should reuse this array between lookups.
+	 * @return whether a term was found.
+	 */
+	public boolean find(CharSequence value, int[] match) {
+		if (mode != Mode.PHRASE) {
+			return matchAt(value, 0, match);
+		}
+		for (int start = 0; start < value.length(); start++) {
+			if (isBoundary(value, start) && matchAt(value, start, match)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the term with the given number, as given in the file.
+	 */
+	public String getTerm(int term) {
+		byte[] bytes = new byte[termLengths[term]];
+		int offset = termOffsets[term];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = file.get(offset + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private boolean matchAt(CharSequence value, int start, int[] match) {
+		int length = value.length();
+		int node = 0;
+		int term = NO_TERM;
+		int end = start;
+		for (int i = start; ; i++) {
+			if (nodeTerms[node] != NO_TERM && endAllowed(value, i)) {
+				term = nodeTerms[node];
+				end = i;
+			}
+			if (i == length) {
+				break;
+			}
+			char c = fold(value.charAt(i));
+			if (c == SKIP) {
+				continue;
+			}
+			node = child(node, c);
+			if (node == NO_NODE) {
+				break;
+			}
+		}
+		if (term == NO_TERM) {
+			return false;
+		}
+		match[0] = term;
+		match[1] = start;
+		match[2] = end;
+		return true;
+	}
+
+	private boolean endAllowed(CharSequence value, int end) {
+		switch (mode) {
+			case EXACT:
+				return end == value.length();
+			case PHRASE:
+				return isBoundary(value, end);
+			default:
+				return true;
+		}
+	}
+
+	private static boolean isBoundary(CharSequence value, int index) {
+		return index == 0 || index == value.length() || !isWordChar(value.charAt(index - 1)) || !isWordChar(value.charAt(index));
+	}
+
+	private static boolean isWordChar(char c) {
+		return Character.isLetterOrDigit(c) || isMark(c);
+	}
+
+	private static boolean isMark(char c) {
+		int type = Character.getType(c);
+		return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK || type == Character.ENCLOSING_MARK;
+	}
+
+	private int child(int node, char c) {
+		int low = childStart[node];
+		int high = childStart[node + 1] - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			char middleChar = edgeChars[middle];
+			if (middleChar < c) {
+				low = middle + 1;
+			} else if (middleChar > c) {
+				high = middle - 1;
+			} else {
+				return edgeTargets[middle];
+			}
+		}
+		return NO_NODE;
+	}
+
+	private char fold(char c) {
+		return folding == null ? c : folding[c];
+	}
+
+	/**
+	 * @return the folded value for each char, or null if no folding is needed.
+	 */
+	private static char[] foldingTable(boolean matchCase, boolean ignoreAccents) {
+		if (matchCase && !ignoreAccents) {
+			return null;
+		}
+		char[] table = new char[Character.MAX_VALUE + 1];
+		for (int i = 0; i < table.length; i++) {
+			char c = (char) i;
+			if (Character.isSurrogate(c) || c == SKIP) {
+				table[i] = c;
+				continue;
+			}
+			if (ignoreAccents) {
+				if (isMark(c)) {
+					table[i] = SKIP;
+					continue;
+				}
+				String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+				if (decomposed.length() > 0 && !isMark(decomposed.charAt(0))) {
+					c = decomposed.charAt(0);
+				}
+			}
+			if (!matchCase) {
+				c = Character.toLowerCase(Character.toUpperCase(c));
+			}
+			table[i] = c;
+		}
+		return table;
+	}
+
+	/**
+	 * Trie under construction, with the children of each node in a linked list. {@link #build(Mode, ByteBuffer)} turns
+	 * this into the sorted arrays used for lookups.
+	 */
+	private static class Builder {
+		private final char[] folding;
+		private char[] labels = new char[1024];
+		private int[] firstChild = new int[1024];
+		private int[] nextSibling = new int[1024];
+		private int[] nodeTerms = new int[1024];
+		private int nodeCount;
+		private int[] termOffsets = new int[256];
+		private int[] termLengths = new int[256];
+		private int termCount;
+
+		Builder(char[] folding) {
+			this.folding = folding;
+			newNode('\0');
+		}
+
+		/**
+		 * Add the UTF-8 encoded term in buffer from start (inclusive) to end (exclusive).
+		 */
+		void add(ByteBuffer buffer, int start, int end) {
+			int node = 0;
+			int i = start;
+			while (i < end) {
+				int b = buffer.get(i) & 0xff;
+				int codePoint;
+				int length;
+				if (b < 0x80) {
+					codePoint = b;
+					length = 1;
+				} else if (b >= 0xc2 && b < 0xe0) {
+					codePoint = b & 0x1f;
+					length = 2;
+				} else if (b >= 0xe0 && b < 0xf0) {
+					codePoint = b & 0x0f;
+					length = 3;
+				} else if (b >= 0xf0 && b < 0xf5) {
+					codePoint = b & 0x07;
+					length = 4;
+				} else {
+					codePoint = 0xfffd;
+					length = 1;
+				}
+				for (int k = 1; k < length; k++) {
+					if (i + k >= end || (buffer.get(i + k) & 0xc0) != 0x80) {
+						codePoint = 0xfffd;
+						length = k;
+						break;
+					}
+					codePoint = (codePoint << 6) | (buffer.get(i + k) & 0x3f);
+				}
+				i += length;
+
+				if (Character.isBmpCodePoint(codePoint)) {
+					char c = folding == null ? (char) codePoint : folding[codePoint];
+					if (c != SKIP) {
+						node = child(node, c);
+					}
+				} else {
+					node = child(node, Character.highSurrogate(codePoint));
+					node = child(node, Character.lowSurrogate(codePoint));
+				}
+			}
+			if (node == 0) {
+				return; // only combining marks
+			}
+			int term = nodeTerms[node];
+			if (term == NO_TERM) {
+				term = termCount++;
+				if (term == termOffsets.length) {
+					termOffsets = Arrays.copyOf(termOffsets, term * 2);
+					termLengths = Arrays.copyOf(termLengths, term * 2);
+				}
+				nodeTerms[node] = term;
+			}
+			termOffsets[term] = start;
+			termLengths[term] = end - start;
+		}
+
+		private int child(int node, char c) {
+			for (int child = firstChild[node]; child != NO_NODE; child = nextSibling[child]) {
+				if (labels[child] == c) {
+					return child;
+				}
+			}
+			int child = newNode(c);
+			nextSibling[child] = firstChild[node];
+			firstChild[node] = child;
+			return child;
+		}
+
+		private int newNode(char label) {
+			if (nodeCount == labels.length) {
+				int capacity = nodeCount * 2;
+				labels = Arrays.copyOf(labels, capacity);
+				firstChild = Arrays.copyOf(firstChild, capacity);
+				nextSibling = Arrays.copyOf(nextSibling, capacity);
+				nodeTerms = Arrays.copyOf(nodeTerms, capacity);
+			}
+			int node = nodeCount++;
+			labels[node] = label;
+			firstChild[node] = NO_NODE;
+			nextSibling[node] = NO_NODE;
+			nodeTerms[node] = NO_TERM;
+			return node;
+		}
+
+		VocabularyMatcher build(Mode mode, ByteBuffer buffer) {
+			int[] childStart = new int[nodeCount + 1];
+			char[] edgeChars = new char[nodeCount - 1];
+			int[] edgeTargets = new int[nodeCount - 1];
+			int edge = 0;
+			for (int node = 0; node < nodeCount; node++) {
+				childStart[node] = edge;
+				int first = edge;
+				for (int child = firstChild[node]; child != NO_NODE; child = nextSibling[child]) {
+					// insertion sort by label; most nodes only have a handful of children
+					int position = edge++;
+					while (position > first && edgeChars[position - 1] > labels[child]) {
+						edgeChars[position] = edgeChars[position - 1];
+						edgeTargets[position] = edgeTargets[position - 1];
+						position--;
+					}
+					edgeChars[position] = labels[child];
+					edgeTargets[position] = child;
+				}
+			}
+			childStart[nodeCount] = edge;
+			return new VocabularyMatcher(mode, folding, childStart, edgeChars, edgeTargets,
+					Arrays.copyOf(nodeTerms, nodeCount),
+					Arrays.copyOf(termOffsets, termCount), Arrays.copyOf(termLengths, termCount), buffer);
+		}
+	}
+}
@@ -1,5 +1,11 @@
 package nz.ac.waikato.its.irr.scripts.stats;
 
+import nz.ac.waikato.its.irr.scripts.ItemIdSource;
+import nz.ac.waikato.its.irr.scripts.ItemProcessingEngine;
+import nz.ac.waikato.its.irr.scripts.ItemScope;
+import nz.ac.waikato.its.irr.scripts.ItemTask;
+import nz.ac.waikato.its.irr.scripts.ScriptUtils;
+import org.apache.commons.cli.*;
 import org.apache.commons.lang.StringUtils;
 import org.dspace.content.*;
 import org.dspace.core.Context;
@@ -11,35 +17,60 @@ import java.sql.SQLException;
  * @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ Institutional Research Repositories
  */
 public class UpdateContainerInfo {
+	private static final Options OPTIONS = new Options();
+
+	static {
+		OPTIONS.addOption("h", "help", false, "Print help for this command and exit without taking any action.");
+		ItemProcessingEngine.addOptions(OPTIONS);
+	}
+
+	private static final ItemTask TASK = new ItemTask() {
+		@Override
+		public boolean process(Context context, Item item) throws SQLException {
+			Collection[] collections = item.getCollections();
+			Community[] communities = item.getCommunities();
+			return false;
+		}
+	};
+
 	public static void main(String[] argv) throws SQLException {
+		ItemProcessingEngine engine = new ItemProcessingEngine(UpdateContainerInfo.class.getSimpleName(), TASK);
+		CommandLine line = null;
+		try {
+			line = new BasicParser().parse(OPTIONS, argv);
+			engine.configure(line);
+		} catch (ParseException e) {
+			System.err.println("Could not parse command line options: " + e.getMessage());
+			ScriptUtils.printHelpAndExit(UpdateContainerInfo.class.getSimpleName(), 1, OPTIONS);
+		}
+
+		if (line == null || line.hasOption("h")) {
+			ScriptUtils.printHelpAndExit(UpdateContainerInfo.class.getSimpleName(), 0, OPTIONS);
+			return;
+		}
+
 		String parentHandle = null;
-		if (argv.length >= 1) {
-			parentHandle = argv[0];
+		if (line.getArgs().length >= 1) {
+			parentHandle = line.getArgs()[0];
 		}
 		Context context = null;
+		ItemIdSource source = null;
 		try {
 			context = new Context();
 			context.turnOffAuthorisationSystem();
 
 			if (StringUtils.isBlank(parentHandle)) {
-				process(Item.findAll(context));
+				source = ItemIdSource.archivedItems();
 			} else {
 				DSpaceObject dso = HandleManager.resolveToObject(context, parentHandle);
 				if (dso == null) {
-					System.err.printf("Cannot resolve supplied handle %s to collection or community\n", parentHandle);
+					System.err.printf("Cannot resolve supplied handle %s to a DSpace object\n", parentHandle);
 					System.exit(1);
 				}
-				if (dso instanceof Collection) {
-					Collection collection = (Collection) dso;
-					process(collection.getAllItems());
-				} else if (dso instanceof Community) {
-					Community community = (Community) dso;
-					Collection[] children = community.getCollections();
-					for (Collection child : children) {
-						process(child.getAllItems());
-					}
-				} else {
-					System.err.printf("Object with supplied handle %s is not a collection or community; not processing any items\n", parentHandle);
+				try {
+					source = ItemScope.resolve(context, dso).toSource(ItemIdSource.archivedItems());
+				} catch (IllegalArgumentException e) {
+					System.err.printf("Object with supplied handle %s is not a site, community, collection or item; not processing any items\n", parentHandle);
 					System.exit(1);
 				}
 			}
@@ -49,15 +80,6 @@ public class UpdateContainerInfo {
 			}
 		}
 
-	}
-
-	private static void process(ItemIterator items) throws SQLException {
-		while (items.hasNext()) {
-			Item item = items.next();
-			Collection[] collections = item.getCollections();
-			Community[] communities = item.getCommunities();
-
-			item.decache();
-		}
+		engine.run(source);
 	}
 }
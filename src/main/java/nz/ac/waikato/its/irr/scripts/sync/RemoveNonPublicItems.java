@@ -1,10 +1,14 @@
 package nz.ac.waikato.its.irr.scripts.sync;
 
+import nz.ac.waikato.its.irr.scripts.ItemIdSource;
+import nz.ac.waikato.its.irr.scripts.ItemProcessingEngine;
+import nz.ac.waikato.its.irr.scripts.ItemTask;
+import nz.ac.waikato.its.irr.scripts.ScriptUtils;
+import org.apache.commons.cli.*;
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.authorize.AuthorizeManager;
 import org.dspace.content.Collection;
 import org.dspace.content.Item;
-import org.dspace.content.ItemIterator;
 import org.dspace.core.Constants;
 import org.dspace.core.Context;
 
@@ -15,39 +19,47 @@ import java.sql.SQLException;
  * @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ Institutional Research Repositories
  */
 public class RemoveNonPublicItems {
+	private static final Options OPTIONS = new Options();
+
+	static {
+		OPTIONS.addOption("h", "help", false, "Print help for this command and exit without taking any action.");
+		ItemProcessingEngine.addOptions(OPTIONS);
+	}
+
+	private static final ItemTask TASK = new ItemTask() {
+		@Override
+		public boolean process(Context context, Item item) throws SQLException, AuthorizeException, IOException {
+			return processItem(item);
+		}
+	};
 
 	public static void main(String[] args) {
-		Context context = null;
+		ItemProcessingEngine engine = new ItemProcessingEngine(RemoveNonPublicItems.class.getSimpleName(), TASK);
+		CommandLine line = null;
 		try {
-			context = new Context();
-			context.turnOffAuthorisationSystem();
+			line = new BasicParser().parse(OPTIONS, args);
+			engine.configure(line);
+		} catch (ParseException e) {
+			System.err.println("Could not parse command line options: " + e.getMessage());
+			ScriptUtils.printHelpAndExit(RemoveNonPublicItems.class.getSimpleName(), 1, OPTIONS);
+		}
 
-			ItemIterator items = Item.findAll(context);
-			while (items.hasNext()) {
-				Item item = items.next();
-				try {
-					processItem(item);
-				} catch (AuthorizeException e) {
-					e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-				} catch (IOException e) {
-					e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-				}
-			}
-			context.commit();
-			context = null;
+		if (line == null || line.hasOption("h")) {
+			ScriptUtils.printHelpAndExit(RemoveNonPublicItems.class.getSimpleName(), 0, OPTIONS);
+			return;
+		}
+
+		try {
+			engine.run(ItemIdSource.archivedItems());
 		} catch (SQLException e) {
-			e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-		} finally {
-			if (context != null) {
-				context.abort();
-			}
+			e.printStackTrace(System.err);
 		}
 	}
 
-	private static void processItem(Item item) throws SQLException, AuthorizeException, IOException {
+	private static boolean processItem(Item item) throws SQLException, AuthorizeException, IOException {
 		if (!item.isArchived() || item.isWithdrawn()) {
 			// don't do anything to items that aren't publicly visible anyway
-			return;
+			return false;
 		}
 		if (!anonymousCanRead(item)) {
 			Collection owningCollection = item.getOwningCollection();
@@ -61,7 +73,9 @@ public class RemoveNonPublicItems {
 			}
 			// remove from owning collection this will also delete the item since the owning collection holds the last reference to the item
 			owningCollection.removeItem(item);
+			return true;
 		}
+		return false;
 	}
 
 	private static boolean anonymousCanRead(Item item) {